@@ -0,0 +1,717 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.common.TurnusConstants.DB_PATH_NAME;
+import static turnus.common.TurnusConstants.TRACE_PROPERTIES_FILE;
+import static turnus.neo4j.trace.NeoConstants.CHAINS_FILE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_ACTION_CHAINS;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_ACTOR_CHAINS;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_CHECKPOINT_INTERVAL;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_COMPACT_DEPENDENCIES;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_PIPELINE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_PIPELINE_BATCH_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_PIPELINE_ENCODERS;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_PIPELINE_QUEUE_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_TOPOLOGICAL_CHAIN;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_ACTION_CHAINS;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_ACTOR_CHAINS;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_CHECKPOINT_INTERVAL;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_COMPACT_DEPENDENCIES;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_PIPELINE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_PIPELINE_BATCH_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_PIPELINE_ENCODERS;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_PIPELINE_QUEUE_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_TOPOLOGICAL_CHAIN;
+import static turnus.neo4j.trace.NeoConstants.DICTIONARY_FILE;
+import static turnus.neo4j.trace.NeoConstants.DP_DIRECTION;
+import static turnus.neo4j.trace.NeoConstants.DP_GUARD;
+import static turnus.neo4j.trace.NeoConstants.DP_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTION;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ID;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTION;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ID;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.DP_VARIABLE;
+import static turnus.neo4j.trace.NeoConstants.LB_STEP;
+import static turnus.neo4j.trace.NeoConstants.MIN_CHECKPOINT_INTERVAL;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTION;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTOR_CLASS;
+import static turnus.neo4j.trace.NeoConstants.SP_ID;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS_COUNTS;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_VARIABLES;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS_COUNTS;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_VARIABLES;
+import static turnus.neo4j.trace.NeoTrace.serialize;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+import turnus.common.TurnusException;
+import turnus.common.TurnusRuntimeException;
+import turnus.common.configuration.Configuration;
+import turnus.common.io.Logger;
+import turnus.common.util.Timer;
+import turnus.model.trace.Dependency.Direction;
+import turnus.model.trace.Dependency.Kind;
+import turnus.model.trace.Trace;
+import turnus.model.trace.TraceBuilder;
+import turnus.model.trace.util.TraceProperties;
+import turnus.neo4j.trace.NeoConstants.ChainType;
+import turnus.neo4j.trace.NeoConstants.TopoType;
+import turnus.neo4j.trace.NeoTracePipeline.Record;
+
+/**
+ * The common part of the trace database builders: the trace is encoded in
+ * node and relationship properties, and the trace properties are computed,
+ * in the same way whatever is the store writer.
+ *
+ */
+public abstract class AbstractNeoTraceBuilder implements TraceBuilder {
+
+	protected static final Label STEP_LABEL = DynamicLabel.label(LB_STEP);
+
+	/**
+	 * A step node waiting to be encoded and written
+	 */
+	private class StepRecord implements Record {
+		private final long id;
+		private final String actor;
+		private final String action;
+		private final String actorClass;
+		private final Map<String, Integer> readTokens;
+		private final Map<String, Integer> writeTokens;
+		private final List<String> readVariables;
+		private final List<String> writeVariables;
+		private final Map<String, Object> attributes;
+		private Map<String, Object> properties;
+
+		private StepRecord(long id, String actor, String action, String actorClass, Map<String, Integer> readTokens,
+				Map<String, Integer> writeTokens, List<String> readVariables, List<String> writeVariables,
+				Map<String, Object> attributes) {
+			this.id = id;
+			this.actor = actor;
+			this.action = action;
+			this.actorClass = actorClass;
+			this.readTokens = readTokens;
+			this.writeTokens = writeTokens;
+			this.readVariables = readVariables;
+			this.writeVariables = writeVariables;
+			this.attributes = attributes;
+		}
+
+		@Override
+		public void encode() {
+			properties = new HashMap<>();
+			properties.put(SP_ACTOR, format.encodeName(actor));
+			properties.put(SP_ACTION, format.encodeName(action));
+			properties.put(SP_ACTOR_CLASS, format.encodeName(actorClass));
+			properties.put(SP_ID, id);
+
+			if (!readTokens.isEmpty()) {
+				format.encodeTokens(readTokens, SP_READ_TOKENS, SP_READ_TOKENS_COUNTS, properties);
+			}
+
+			if (!writeTokens.isEmpty()) {
+				format.encodeTokens(writeTokens, SP_WRITE_TOKENS, SP_WRITE_TOKENS_COUNTS, properties);
+			}
+
+			if (!readVariables.isEmpty()) {
+				format.encodeVariables(readVariables, SP_READ_VARIABLES, properties);
+			}
+
+			if (!writeVariables.isEmpty()) {
+				format.encodeVariables(writeVariables, SP_WRITE_VARIABLES, properties);
+			}
+
+			if (attributes != null && !attributes.isEmpty()) {
+				Map<String, Object> serialized = serialize(attributes);
+				for (Entry<String, Object> e : serialized.entrySet()) {
+					properties.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+
+		@Override
+		public void write() {
+			writeStep(id, properties);
+			ntd.addStep(actor, action);
+			if (chains != null) {
+				long previous = chains.appendActor(actor, id);
+				if (previous >= 0) {
+					writeLink(previous, id, ChainType.ACTOR_NEXT);
+				}
+				if (chains.hasActions()) {
+					previous = chains.appendAction(actor, action, id);
+					if (previous >= 0) {
+						writeLink(previous, id, ChainType.ACTION_NEXT);
+					}
+				}
+			}
+			lastStep = id;
+			written();
+		}
+	}
+
+	/**
+	 * A dependency relationship waiting to be encoded and written
+	 */
+	private class DependencyRecord implements Record {
+		private final long sourceId;
+		private final String sourceActor;
+		private final String sourceAction;
+		private final long targetId;
+		private final String targetActor;
+		private final String targetAction;
+		private final Kind kind;
+		private final Direction direction;
+		private final String guard;
+		private final String variable;
+		private final String port;
+		private final String sourcePort;
+		private final String targetPort;
+		private final int count;
+		private final Map<String, Object> attributes;
+		private Map<String, Object> properties;
+
+		private DependencyRecord(long sourceId, String sourceActor, String sourceAction, long targetId,
+				String targetActor, String targetAction, Kind kind, Direction direction, String guard,
+				String variable, String port, String sourcePort, String targetPort, int count,
+				Map<String, Object> attributes) {
+			this.sourceId = sourceId;
+			this.sourceActor = sourceActor;
+			this.sourceAction = sourceAction;
+			this.targetId = targetId;
+			this.targetActor = targetActor;
+			this.targetAction = targetAction;
+			this.kind = kind;
+			this.direction = direction;
+			this.guard = guard;
+			this.variable = variable;
+			this.port = port;
+			this.sourcePort = sourcePort;
+			this.targetPort = targetPort;
+			this.count = count;
+			this.attributes = attributes;
+		}
+
+		@Override
+		public void encode() {
+			properties = new HashMap<>();
+			if (!format.isCompact()) {
+				properties.put(DP_SOURCE_ID, sourceId);
+				properties.put(DP_SOURCE_ACTOR, format.encodeName(sourceActor));
+				properties.put(DP_SOURCE_ACTION, format.encodeName(sourceAction));
+				properties.put(DP_TARGET_ID, targetId);
+				properties.put(DP_TARGET_ACTOR, format.encodeName(targetActor));
+				properties.put(DP_TARGET_ACTION, format.encodeName(targetAction));
+			}
+
+			switch (kind) {
+			case GUARD:
+				properties.put(DP_GUARD, format.encodeName(guard));
+				properties.put(DP_DIRECTION, direction.literal());
+				break;
+			case PORT:
+				properties.put(DP_PORT, format.encodeName(port));
+				properties.put(DP_DIRECTION, direction.literal());
+				break;
+			case VARIABLE:
+				properties.put(DP_VARIABLE, format.encodeName(variable));
+				properties.put(DP_DIRECTION, direction.literal());
+				break;
+			case TOKENS:
+				properties.put(DP_SOURCE_PORT, format.encodeName(sourcePort));
+				properties.put(DP_TARGET_PORT, format.encodeName(targetPort));
+				properties.put(DP_TOKENS, count);
+				break;
+			default:
+				break;
+			}
+
+			if (attributes != null && !attributes.isEmpty()) {
+				Map<String, Object> serialized = serialize(attributes);
+				for (Entry<String, Object> e : serialized.entrySet()) {
+					properties.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+
+		@Override
+		public void write() {
+			writeDependency(sourceId, targetId, kind, properties);
+			ntd.addDependency();
+			if (idOrdered && sourceId >= targetId) {
+				idOrdered = false;
+				NeoTraceFormat.setIdOrdered(ntd, false);
+				if (topologicalChain) {
+					Logger.info("The dependency %d->%d breaks the step id order: the trace will be sorted", sourceId,
+							targetId);
+				}
+			}
+			lastSource = sourceId;
+			lastTarget = targetId;
+			written();
+		}
+	}
+
+	protected final File traceFile;
+	protected final File dbPath;
+
+	protected TraceProperties ntd;
+	protected NeoTraceFormat format;
+	protected NeoStoreSizing sizing;
+	/** the build configuration */
+	protected Configuration configuration;
+	private NeoTracePipeline pipeline;
+	private boolean opened;
+	/** the expected size set before the configuration, it is applied by it */
+	private long[] expectedSize;
+
+	/** the checkpoint this build has been resumed from */
+	protected NeoTraceCheckpoint resumed;
+	private long checkpointInterval;
+	/** the number of parsed records that are skipped (parser thread) */
+	private long skipped;
+	/** the number of parsed records written (writer thread) */
+	private long records;
+	private long lastStep = -1;
+	private long lastSource = -1;
+	private long lastTarget = -1;
+
+	private boolean topologicalChain;
+	/** the per-actor step chains (writer thread) */
+	private NeoStepChains chains;
+	/** if the step ids are a topological order of the trace (writer thread) */
+	private boolean idOrdered = true;
+
+	public AbstractNeoTraceBuilder(File traceFile) {
+		this.traceFile = traceFile;
+		dbPath = new File(traceFile.getParentFile(), DB_PATH_NAME);
+	}
+
+	/**
+	 * Open the store writer
+	 */
+	protected abstract void open();
+
+	/**
+	 * Write a step node. This method is always called by the same thread.
+	 * 
+	 * @param id
+	 *            the step id
+	 * @param properties
+	 *            the encoded node properties
+	 */
+	protected abstract void writeStep(long id, Map<String, Object> properties);
+
+	/**
+	 * Write a dependency relationship. This method is always called by the
+	 * same thread.
+	 * 
+	 * @param sourceId
+	 *            the source step id
+	 * @param targetId
+	 *            the target step id
+	 * @param kind
+	 *            the dependency kind
+	 * @param properties
+	 *            the encoded relationship properties
+	 */
+	protected abstract void writeDependency(long sourceId, long targetId, Kind kind, Map<String, Object> properties);
+
+	/**
+	 * Close the store writer: after this call the store can be opened by
+	 * {@link NeoTrace}
+	 */
+	protected abstract void close();
+
+	/**
+	 * Write a structural link between two steps, without properties: a
+	 * {@link NeoConstants.TopoType#TOPOLOGICAL} or a
+	 * {@link NeoConstants.ChainType} relationship. This method is always
+	 * called by the same thread.
+	 * 
+	 * @param sourceId
+	 * @param targetId
+	 * @param type
+	 */
+	protected abstract void writeLink(long sourceId, long targetId, RelationshipType type);
+
+	/**
+	 * Make everything written so far durable, so that a checkpoint can be
+	 * taken. This method is always called by the writing thread.
+	 * 
+	 * @return <code>false</code> if this builder does not support checkpoints
+	 */
+	protected boolean flush() {
+		return false;
+	}
+
+	/**
+	 * Return the highest node id written in the store, it is recorded by a
+	 * checkpoint
+	 * 
+	 * @return the id or -1 if there is no node
+	 */
+	protected long getHighNodeId() {
+		return -1;
+	}
+
+	/**
+	 * Return the highest relationship id written in the store, it is recorded
+	 * by a checkpoint
+	 * 
+	 * @return the id or -1 if there is no relationship
+	 */
+	protected long getHighRelationshipId() {
+		return -1;
+	}
+
+	/**
+	 * Resume the build from the checkpoint saved in the database directory.
+	 * Only the insertion is resumed: the trace must be parsed again from the
+	 * beginning, and the records covered by the checkpoint are skipped
+	 * without being inserted. This method must be called after
+	 * {@link #setConfiguration(Configuration)}.
+	 * 
+	 * @return <code>false</code> if the build cannot be resumed
+	 */
+	public boolean resume() {
+		if (checkpointInterval <= 0) {
+			return false;
+		}
+		try {
+			NeoTraceCheckpoint checkpoint = NeoTraceCheckpoint.load(dbPath);
+			if (checkpoint == null) {
+				return false;
+			}
+			ntd = checkpoint.getProperties();
+			format = new NeoTraceFormat(NeoTraceFormat.getVersion(ntd), checkpoint.getDictionary(),
+					NeoTraceFormat.isCompact(ntd));
+			sizing = NeoStoreSizing.fromProperties(ntd);
+			resumed = checkpoint;
+			records = checkpoint.getRecords();
+			lastStep = checkpoint.getLastStep();
+			lastSource = checkpoint.getLastDependencySource();
+			lastTarget = checkpoint.getLastDependencyTarget();
+			idOrdered = NeoTraceFormat.isIdOrdered(ntd);
+			chains = checkpoint.getChains();
+			checkpoint.log();
+			return true;
+		} catch (Exception e) {
+			Logger.warning("The trace database checkpoint cannot be loaded");
+			Logger.debug(e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public Trace build() {
+		if (!opened) {
+			open();
+			opened = true;
+		}
+
+		Timer timer = new Timer();
+		Logger.info("Finalising trace building on the database");
+		if (pipeline != null) {
+			pipeline.finish();
+			pipeline = null;
+		}
+		long steps = ntd.getSteps();
+		if (topologicalChain && idOrdered && steps > 0) {
+			// each step i is linked to the step i+1
+			for (long i = 1; i < steps; i++) {
+				writeLink(i - 1, i, TopoType.TOPOLOGICAL);
+			}
+			ntd.setSourceNode(0);
+			ntd.setSinkNode(steps - 1);
+			ntd.setSorted();
+			Logger.debug("Topological chain of %d steps created during the ingestion", steps);
+		} else {
+			// the topological order, if any, will not follow the step ids
+			NeoTraceFormat.setIdOrdered(ntd, false);
+		}
+		close();
+		Logger.debug("Trace database finalized in %ds", timer.getElapsedS());
+		NeoTrace trace;
+		try {
+			File parametesFile = new File(dbPath, TRACE_PROPERTIES_FILE);
+			ntd.store(parametesFile);
+			if (format.getDictionary() != null) {
+				format.getDictionary().store(new File(dbPath, DICTIONARY_FILE));
+			}
+			if (chains != null) {
+				chains.store(new File(dbPath, CHAINS_FILE));
+			}
+			NeoTraceCheckpoint.delete(dbPath);
+			trace = new NeoTrace(traceFile);
+		} catch (Exception e) {
+			throw new TurnusRuntimeException("The trace database cannot be opened after its creation from " + dbPath);
+		}
+
+		if (topologicalChain && !trace.isSorted()) {
+			trace.sort();
+		}
+		return trace;
+	}
+
+	/**
+	 * Return the store configuration. The stores are sized according to the
+	 * expected trace size, if it is known, otherwise the default configuration
+	 * is used. The values set in the build configuration override both.
+	 * 
+	 * @return
+	 */
+	protected Map<String, String> getStoreConfiguration() {
+		NeoStoreSizing sizing = this.sizing != null ? this.sizing : NeoStoreSizing.fromDefaults();
+		if (configuration != null) {
+			sizing.configure(configuration);
+		}
+		return sizing.toConfiguration();
+	}
+
+	/**
+	 * Create the deferred schema indexes of the step nodes
+	 * 
+	 * @param inserter
+	 */
+	protected static void createIndexes(BatchInserter inserter) {
+		inserter.createDeferredSchemaIndex(STEP_LABEL).on(SP_ACTOR).create();
+		inserter.createDeferredSchemaIndex(STEP_LABEL).on(SP_ACTION).create();
+	}
+
+	protected static Thread registerShutdownHook(final BatchInserter graphDb) {
+		Thread hook = new Thread() {
+			@Override
+			public void run() {
+				try {
+					graphDb.shutdown();
+					Logger.debug("neo trace batch inserter has been shutdown");
+				} catch (Exception e) {
+					Logger.debug("neo trace batch inserter ShutdownHook error: " + e.getMessage());
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+		return hook;
+	}
+
+	private void addDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, Kind kind, Direction direction, String guard, String variable,
+			String port, String sourcePort, String targetPort, int count, Map<String, Object> attributes) {
+		insert(new DependencyRecord(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, kind,
+				direction, guard, variable, port, sourcePort, targetPort, count, attributes));
+	}
+
+	/**
+	 * Insert a record: in pipelined mode the record is handed to the pipeline,
+	 * otherwise it is encoded and written straight away
+	 * 
+	 * @param record
+	 */
+	private void insert(Record record) {
+		if (resumed != null && skipped < resumed.getRecords()) {
+			// already written before the checkpoint
+			skipped++;
+			return;
+		}
+
+		if (!opened) {
+			open();
+			opened = true;
+		}
+
+		if (pipeline != null) {
+			pipeline.submit(record);
+		} else {
+			record.encode();
+			record.write();
+		}
+	}
+
+	/**
+	 * Count a written record and take a checkpoint if it is due
+	 */
+	private void written() {
+		records++;
+		if (checkpointInterval > 0 && records % checkpointInterval == 0) {
+			Timer timer = new Timer();
+			if (!flush()) {
+				Logger.warning("Checkpoints are not supported by this trace builder");
+				checkpointInterval = 0;
+				return;
+			}
+			NeoTraceCheckpoint checkpoint = new NeoTraceCheckpoint(ntd, format.getDictionary(), chains);
+			checkpoint.update(records, lastStep, lastSource, lastTarget, getHighNodeId(), getHighRelationshipId());
+			try {
+				checkpoint.store(dbPath);
+			} catch (TurnusException e) {
+				throw new TurnusRuntimeException("The trace database checkpoint cannot be stored", e);
+			}
+			Logger.debug("Checkpoint at %d records taken in %ds", records, timer.getElapsedS());
+		}
+	}
+
+	@Override
+	public void setExpectedSize(long expectedS, long expectedD) {
+		if (opened) {
+			Logger.debug("The trace database is already opened: the expected size is ignored");
+			return;
+		}
+		if (configuration == null) {
+			// the sizing depends on the configuration: the store is opened
+			// by the first record
+			expectedSize = new long[] { expectedS, expectedD };
+			return;
+		}
+		applyExpectedSize(expectedS, expectedD);
+		open();
+		opened = true;
+	}
+
+	private void applyExpectedSize(long expectedS, long expectedD) {
+		Logger.debug("Expected trace size: %d steps and %d dependencies", expectedS, expectedD);
+		sizing = NeoStoreSizing.fromExpectedSize(expectedS, expectedD, format.isCompact());
+		sizing.configure(configuration);
+		sizing.log();
+		sizing.store(ntd);
+	}
+
+	@Override
+	public void setConfiguration(Configuration configuration) {
+		this.configuration = configuration;
+		ntd = new TraceProperties();
+		boolean compact = configuration.getValue(CONFIG_COMPACT_DEPENDENCIES, DEFAULT_COMPACT_DEPENDENCIES);
+		format = new NeoTraceFormat(NeoTraceFormat.CURRENT, new NeoDictionary(), compact);
+		NeoTraceFormat.setVersion(ntd, format.getVersion());
+		NeoTraceFormat.setCompact(ntd, format.isCompact());
+		// until a dependency breaks the id order
+		NeoTraceFormat.setIdOrdered(ntd, true);
+		checkpointInterval = configuration.getValue(CONFIG_CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+		if (checkpointInterval > 0 && checkpointInterval < MIN_CHECKPOINT_INTERVAL) {
+			Logger.warning("The checkpoint interval is raised from %d to %d records", checkpointInterval,
+					MIN_CHECKPOINT_INTERVAL);
+			checkpointInterval = MIN_CHECKPOINT_INTERVAL;
+		}
+		topologicalChain = configuration.getValue(CONFIG_TOPOLOGICAL_CHAIN, DEFAULT_TOPOLOGICAL_CHAIN);
+		if (configuration.getValue(CONFIG_ACTOR_CHAINS, DEFAULT_ACTOR_CHAINS)) {
+			chains = new NeoStepChains(configuration.getValue(CONFIG_ACTION_CHAINS, DEFAULT_ACTION_CHAINS));
+		}
+		if (configuration.getValue(CONFIG_PIPELINE, DEFAULT_PIPELINE)) {
+			int encoders = configuration.getValue(CONFIG_PIPELINE_ENCODERS, DEFAULT_PIPELINE_ENCODERS);
+			int batchSize = configuration.getValue(CONFIG_PIPELINE_BATCH_SIZE, DEFAULT_PIPELINE_BATCH_SIZE);
+			int queueSize = configuration.getValue(CONFIG_PIPELINE_QUEUE_SIZE, DEFAULT_PIPELINE_QUEUE_SIZE);
+			pipeline = new NeoTracePipeline(encoders, batchSize, queueSize);
+		}
+		if (expectedSize != null) {
+			applyExpectedSize(expectedSize[0], expectedSize[1]);
+			expectedSize = null;
+		}
+	}
+
+	@Override
+	public void addAttributes(Map<String, Object> attributes) {
+		for (Entry<String, Object> e : attributes.entrySet()) {
+			ntd.setAttribute(e.getKey(), e.getValue());
+		}
+
+	}
+
+	@Override
+	public void addFsmDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, Map<String, Object> attributes) {
+		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.FSM, null, null,
+				null, null, null, null, 0, attributes);
+
+	}
+
+	@Override
+	public void addGuardDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, String guard, Direction direction,
+			Map<String, Object> attributes) {
+		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.GUARD, direction,
+				guard, null, null, null, null, 0, attributes);
+
+	}
+
+	@Override
+	public void addPortDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, String port, Direction direction, Map<String, Object> attributes) {
+		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.PORT, direction,
+				null, null, port, null, null, 0, attributes);
+
+	}
+
+	@Override
+	public void addStep(long id, String actor, String action, String actorClass, Map<String, Integer> readTokens,
+			Map<String, Integer> writeTokens, List<String> readVariables, List<String> writeVariables,
+			Map<String, Object> attributes) {
+		insert(new StepRecord(id, actor, action, actorClass, readTokens, writeTokens, readVariables, writeVariables,
+				attributes));
+	}
+
+	@Override
+	public void addTokensDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, String sourcePort, String targetPort, int tokens,
+			Map<String, Object> attributes) {
+		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.TOKENS, null, null,
+				null, null, sourcePort, targetPort, tokens, attributes);
+
+	}
+
+	@Override
+	public void addVariableDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
+			String targetActor, String targetAction, String variable, Direction direction,
+			Map<String, Object> attributes) {
+		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.VARIABLE,
+				direction, null, variable, null, null, null, 0, attributes);
+
+	}
+
+}
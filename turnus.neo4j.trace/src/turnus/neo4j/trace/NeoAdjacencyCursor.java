@@ -0,0 +1,449 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.api.RelationshipVisitor;
+import org.neo4j.kernel.impl.api.store.RelationshipIterator;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+
+import turnus.common.TurnusRuntimeException;
+import turnus.model.trace.Dependency.Kind;
+import turnus.neo4j.trace.NeoConstants.RelType;
+
+/**
+ * A reusable cursor over the dependencies of a step. Each position exposes the
+ * relationship id, the dependency kind and the ids of the two steps, read
+ * directly from the kernel without creating any node, relationship or
+ * dependency object. A cursor must be used by a single thread, inside a
+ * transaction of the trace.
+ *
+ * <pre>
+ * NeoAdjacencyCursor cursor = trace.newAdjacencyCursor();
+ * for (cursor.outgoings(stepId); cursor.next();) {
+ * 	long target = cursor.getNeighbourId();
+ * 	...
+ * }
+ * </pre>
+ *
+ */
+public class NeoAdjacencyCursor implements AutoCloseable {
+
+	private final ThreadToStatementContextBridge bridge;
+	/** the dependency relationship type ids, the topological ones excluded */
+	private int[] typeIds = new int[0];
+	/** the dependency kinds, indexed by relationship type id */
+	private Kind[] kinds = new Kind[0];
+	/** the relationship type ids, indexed by kind ordinal */
+	private final int[] kindTypeIds = new int[Kind.values().length];
+	/** the number of dependency types not yet created in the store */
+	private int unresolved = RelType.values().length;
+
+	/** the last requested kinds and their relationship type ids */
+	private Set<Kind> lastKinds;
+	private int[] lastTypeIds;
+
+	private final RelationshipVisitor<RuntimeException> visitor = new RelationshipVisitor<RuntimeException>() {
+		@Override
+		public void visit(long relationshipId, int typeId, long startNodeId, long endNodeId) {
+			NeoAdjacencyCursor.this.relationshipId = relationshipId;
+			NeoAdjacencyCursor.this.typeId = typeId;
+			sourceId = startNodeId;
+			targetId = endNodeId;
+		}
+	};
+
+	private Statement statement;
+	private RelationshipIterator iterator;
+	/** the relationship ids of a scan of the whole store */
+	private PrimitiveLongIterator scan;
+	private Direction direction;
+	private long stepId = -1;
+
+	private long relationshipId = -1;
+	private int typeId = -1;
+	private long sourceId = -1;
+	private long targetId = -1;
+
+	/**
+	 * Create a new cursor. The dependency relationship types are resolved
+	 * here; a type that is not yet used in the store is resolved again when
+	 * its kind is requested, so that the dependencies added after the creation
+	 * of this cursor are not missed.
+	 *
+	 * @param bridge
+	 *            the statement provider of the database
+	 */
+	NeoAdjacencyCursor(ThreadToStatementContextBridge bridge) {
+		this.bridge = bridge;
+		Arrays.fill(kindTypeIds, -1);
+		try (Statement statement = bridge.instance()) {
+			resolve(statement.readOperations());
+		}
+	}
+
+	/**
+	 * Move this cursor before the first incoming dependency of a step
+	 *
+	 * @param stepId
+	 * @return this cursor
+	 */
+	public NeoAdjacencyCursor incomings(long stepId) {
+		return init(stepId, Direction.INCOMING, null);
+	}
+
+	/**
+	 * Move this cursor before the first incoming dependency of a step, only the
+	 * dependencies of the given kinds are iterated
+	 *
+	 * @param stepId
+	 * @param kinds
+	 * @return this cursor
+	 */
+	public NeoAdjacencyCursor incomings(long stepId, Set<Kind> kinds) {
+		return init(stepId, Direction.INCOMING, kinds);
+	}
+
+	/**
+	 * Move this cursor before the first outgoing dependency of a step
+	 *
+	 * @param stepId
+	 * @return this cursor
+	 */
+	public NeoAdjacencyCursor outgoings(long stepId) {
+		return init(stepId, Direction.OUTGOING, null);
+	}
+
+	/**
+	 * Move this cursor before the first outgoing dependency of a step, only the
+	 * dependencies of the given kinds are iterated
+	 *
+	 * @param stepId
+	 * @param kinds
+	 * @return this cursor
+	 */
+	public NeoAdjacencyCursor outgoings(long stepId, Set<Kind> kinds) {
+		return init(stepId, Direction.OUTGOING, kinds);
+	}
+
+	/**
+	 * Move this cursor before the first dependency of the trace. The
+	 * relationship store is scanned sequentially, in relationship id order,
+	 * and the relationships that are not dependencies are skipped. The
+	 * neighbour of each position is the target step.
+	 *
+	 * @return this cursor
+	 */
+	public NeoAdjacencyCursor all() {
+		init(-1, Direction.OUTGOING, EnumSet.noneOf(Kind.class));
+		statement = bridge.instance();
+		ReadOperations read = statement.readOperations();
+		if (unresolved > 0) {
+			resolve(read);
+		}
+		scan = read.relationshipsGetAll();
+		return this;
+	}
+
+	/**
+	 * Return the number of dependencies of a step, without iterating them.
+	 * The position of this cursor is not changed.
+	 *
+	 * @param stepId
+	 * @param direction
+	 * @param kinds
+	 *            the dependency kinds to count, or <code>null</code> for all
+	 *            of them
+	 * @return
+	 */
+	public int degree(long stepId, Direction direction, Set<Kind> kinds) {
+		try (Statement statement = bridge.instance()) {
+			ReadOperations read = statement.readOperations();
+			int[] types = getTypeIds(read, kinds);
+			int degree = 0;
+			for (int type : types) {
+				degree += read.nodeGetDegree(stepId, direction, type);
+			}
+			return degree;
+		} catch (EntityNotFoundException e) {
+			throw new TurnusRuntimeException("The step " + stepId + " does not exist", e);
+		}
+	}
+
+	/**
+	 * Move this cursor to the next dependency
+	 *
+	 * @return <code>false</code> if there are no more dependencies, the cursor
+	 *         is then closed
+	 */
+	public boolean next() {
+		if (scan != null) {
+			return nextScanned();
+		}
+		if (iterator == null) {
+			return false;
+		}
+		if (!iterator.hasNext()) {
+			close();
+			return false;
+		}
+		iterator.relationshipVisit(iterator.next(), visitor);
+		return true;
+	}
+
+	private boolean nextScanned() {
+		ReadOperations read = statement.readOperations();
+		while (scan.hasNext()) {
+			try {
+				read.relationshipVisit(scan.next(), visitor);
+			} catch (EntityNotFoundException e) {
+				// a deleted relationship
+				continue;
+			}
+			if (getKind() != null) {
+				return true;
+			}
+		}
+		close();
+		return false;
+	}
+
+	/**
+	 * Return the step whose dependencies are iterated
+	 *
+	 * @return the step id, or <code>-1</code> when the whole store is scanned
+	 */
+	public long getStepId() {
+		return stepId;
+	}
+
+	/**
+	 * Return the id of the current dependency relationship
+	 *
+	 * @return
+	 */
+	public long getRelationshipId() {
+		return relationshipId;
+	}
+
+	/**
+	 * Return the kind of the current dependency
+	 *
+	 * @return
+	 */
+	public Kind getKind() {
+		return typeId >= 0 && typeId < kinds.length ? kinds[typeId] : null;
+	}
+
+	/**
+	 * Return the kind code of the current dependency, i.e. the ordinal of its
+	 * {@link Kind}
+	 *
+	 * @return the code or <code>-1</code> if the kind is not known
+	 */
+	public int getKindCode() {
+		Kind kind = getKind();
+		return kind != null ? kind.ordinal() : -1;
+	}
+
+	/**
+	 * Return the source step id of the current dependency
+	 *
+	 * @return
+	 */
+	public long getSourceId() {
+		return sourceId;
+	}
+
+	/**
+	 * Return the target step id of the current dependency
+	 *
+	 * @return
+	 */
+	public long getTargetId() {
+		return targetId;
+	}
+
+	/**
+	 * Return the id of the step at the other end of the current dependency:
+	 * the source for the incoming dependencies, the target for the outgoing
+	 * ones
+	 *
+	 * @return
+	 */
+	public long getNeighbourId() {
+		return direction == Direction.INCOMING ? sourceId : targetId;
+	}
+
+	/**
+	 * Release the kernel statement held by this cursor. The cursor can be
+	 * moved to another step afterwards.
+	 */
+	@Override
+	public void close() {
+		iterator = null;
+		scan = null;
+		if (statement != null) {
+			statement.close();
+			statement = null;
+		}
+	}
+
+	/**
+	 * Return the relationship type ids of some dependency kinds. The ids of the
+	 * last requested kinds are reused, so that iterating the same kinds for
+	 * all the steps does not allocate. The requested kinds whose type is not
+	 * yet used in the store are looked up again, since a dependency of that
+	 * kind may have been added meanwhile.
+	 *
+	 * @param read
+	 * @param kinds
+	 *            the dependency kinds, or <code>null</code> for all of them
+	 * @return
+	 */
+	private int[] getTypeIds(ReadOperations read, Set<Kind> kinds) {
+		if (unresolved > 0 && !isResolved(kinds)) {
+			resolve(read);
+		}
+		if (kinds == null) {
+			return typeIds;
+		}
+		if (kinds.equals(lastKinds)) {
+			return lastTypeIds;
+		}
+		int[] ids = new int[kinds.size()];
+		int size = 0;
+		for (Kind kind : kinds) {
+			int id = kindTypeIds[kind.ordinal()];
+			if (id >= 0) { // the kind is used in the store
+				ids[size++] = id;
+			}
+		}
+		lastKinds = kinds.isEmpty() ? EnumSet.noneOf(Kind.class) : EnumSet.copyOf(kinds);
+		lastTypeIds = Arrays.copyOf(ids, size);
+		return lastTypeIds;
+	}
+
+	/**
+	 * Check if all the given dependency kinds have a relationship type in the
+	 * store
+	 *
+	 * @param kinds
+	 *            the dependency kinds, or <code>null</code> for all of them
+	 * @return
+	 */
+	private boolean isResolved(Set<Kind> kinds) {
+		if (kinds == null) {
+			return unresolved == 0;
+		}
+		for (Kind kind : kinds) {
+			if (kindTypeIds[kind.ordinal()] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Look up the dependency relationship types that were not used in the
+	 * store yet. The cached ids of the last requested kinds are dropped when a
+	 * new type is found.
+	 *
+	 * @param read
+	 */
+	private void resolve(ReadOperations read) {
+		int[] ids = typeIds;
+		int size = typeIds.length;
+		for (RelType type : RelType.values()) {
+			Kind kind = RelType.getKind(type);
+			if (kindTypeIds[kind.ordinal()] >= 0) {
+				continue;
+			}
+			int id = read.relationshipTypeGetForName(type.name());
+			if (id >= 0) { // the type is used in the store
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, RelType.values().length);
+				}
+				ids[size++] = id;
+				if (id >= kinds.length) {
+					kinds = Arrays.copyOf(kinds, id + 1);
+				}
+				kinds[id] = kind;
+				kindTypeIds[kind.ordinal()] = id;
+				unresolved--;
+			}
+		}
+		if (size != typeIds.length) {
+			typeIds = Arrays.copyOf(ids, size);
+			lastKinds = null;
+			lastTypeIds = null;
+		}
+	}
+
+	private NeoAdjacencyCursor init(long stepId, Direction direction, Set<Kind> kinds) {
+		close();
+		this.stepId = stepId;
+		this.direction = direction;
+		relationshipId = -1;
+		typeId = -1;
+		sourceId = -1;
+		targetId = -1;
+		if (kinds != null && kinds.isEmpty()) {
+			return this;
+		}
+
+		statement = bridge.instance();
+		ReadOperations read = statement.readOperations();
+		int[] typeIds = getTypeIds(read, kinds);
+		if (typeIds.length == 0) {
+			// no dependency of the requested kinds has been stored
+			close();
+			return this;
+		}
+		try {
+			iterator = read.nodeGetRelationships(stepId, direction, typeIds);
+		} catch (EntityNotFoundException e) {
+			close();
+			throw new TurnusRuntimeException("The step " + stepId + " does not exist", e);
+		}
+		return this;
+	}
+
+}
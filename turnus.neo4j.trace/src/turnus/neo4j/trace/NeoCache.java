@@ -0,0 +1,191 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.CacheStats;
+
+import turnus.common.io.Logger;
+
+/**
+ * A direct-mapped cache of objects keyed by a primitive <code>long</code> id
+ * (a node or a relationship id). Each id is hashed to a single slot: a new
+ * entry replaces the one stored in its slot. Lookups do not box the id and do
+ * not allocate. The cache can be used by concurrent threads without locking:
+ * each slot holds an immutable entry, which is replaced atomically.
+ *
+ * The capacity is derived from a size in bytes and from the estimated heap
+ * size of an entry.
+ *
+ * @param <V>
+ *            the cached objects type
+ */
+public class NeoCache<V> {
+
+	/** the bytes of a slot, i.e. the entry with its key and value */
+	private static final int SLOT_SIZE = 32;
+	private static final int MIN_CAPACITY = 16;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private static class Entry<V> {
+		private final long key;
+		private final V value;
+
+		private Entry(long key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Return a fraction of the maximum heap size
+	 *
+	 * @param fraction
+	 * @return the size in bytes
+	 */
+	public static long heapFraction(double fraction) {
+		return (long) (Runtime.getRuntime().maxMemory() * fraction);
+	}
+
+	private final String name;
+	private final Entry<V>[] slots;
+	private final int shift;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Create a new cache
+	 *
+	 * @param name
+	 *            the name used in the log
+	 * @param maxBytes
+	 *            the maximum estimated heap size of the cache
+	 * @param entrySize
+	 *            the estimated heap size of a cached object, in bytes
+	 */
+	@SuppressWarnings("unchecked")
+	public NeoCache(String name, long maxBytes, int entrySize) {
+		this.name = name;
+		long size = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, maxBytes / (entrySize + SLOT_SIZE)));
+		int capacity = Integer.highestOneBit((int) size);
+		this.slots = new Entry[capacity];
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	/**
+	 * Return the cached object of an id
+	 *
+	 * @param key
+	 * @return the object or <code>null</code> if it is not cached
+	 */
+	public V get(long key) {
+		Entry<V> entry = slots[slot(key)];
+		if (entry != null && entry.key == key) {
+			hits.increment();
+			return entry.value;
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Cache the object of an id, replacing the entry of the same slot
+	 *
+	 * @param key
+	 * @param value
+	 */
+	public void put(long key, V value) {
+		int slot = slot(key);
+		Entry<V> entry = slots[slot];
+		if (entry != null && entry.key != key) {
+			evictions.increment();
+		}
+		slots[slot] = new Entry<>(key, value);
+	}
+
+	/**
+	 * Remove the cached object of an id
+	 *
+	 * @param key
+	 */
+	public void invalidate(long key) {
+		int slot = slot(key);
+		Entry<V> entry = slots[slot];
+		if (entry != null && entry.key == key) {
+			slots[slot] = null;
+		}
+	}
+
+	/**
+	 * Remove all the cached objects
+	 */
+	public void invalidateAll() {
+		Arrays.fill(slots, null);
+	}
+
+	/**
+	 * Return the number of slots
+	 *
+	 * @return
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Return the hit, miss and eviction counters
+	 *
+	 * @return
+	 */
+	public CacheStats getStats() {
+		return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+	}
+
+	/**
+	 * Log the hit and miss counters
+	 */
+	public void log() {
+		CacheStats stats = getStats();
+		Logger.debug("%s cache (%d slots): %d hits, %d misses (%.1f%% hit rate), %d evictions", name, capacity(),
+				stats.hitCount(), stats.missCount(), stats.hitRate() * 100, stats.evictionCount());
+	}
+
+	private int slot(long key) {
+		// Fibonacci hashing: consecutive ids are spread over all the slots
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+}
@@ -0,0 +1,365 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.io.File;
+
+import turnus.common.TurnusException;
+import turnus.common.TurnusRuntimeException;
+
+/**
+ * A column of the values of one attribute, indexed by step or dependency id.
+ * The values of each element type are stored in their own memory-mapped file,
+ * and a byte array records the type of the value stored for each id (or that
+ * there is none). Integer, long, double and boolean values can be stored.
+ *
+ * The column can be scanned without deserializing or boxing the values.
+ *
+ */
+public class NeoColumn implements AutoCloseable {
+
+	/**
+	 * The element types of a column
+	 */
+	public static enum Type {
+		INT("int", NeoMappedArray.INT), LONG("long", NeoMappedArray.LONG), DOUBLE("double",
+				NeoMappedArray.LONG), BOOLEAN("boolean", NeoMappedArray.BYTE);
+
+		private final String suffix;
+		private final int elementSize;
+
+		private Type(String suffix, int elementSize) {
+			this.suffix = suffix;
+			this.elementSize = elementSize;
+		}
+
+		private byte code() {
+			return (byte) (ordinal() + 1);
+		}
+
+		/**
+		 * Return the column type of a value
+		 *
+		 * @param value
+		 * @return the type or <code>null</code> if the value cannot be stored
+		 *         in a column
+		 */
+		public static Type of(Object value) {
+			if (value instanceof Integer) {
+				return INT;
+			} else if (value instanceof Long) {
+				return LONG;
+			} else if (value instanceof Double) {
+				return DOUBLE;
+			} else if (value instanceof Boolean) {
+				return BOOLEAN;
+			}
+			return null;
+		}
+	}
+
+	/** the suffix of the types file */
+	static final String TYPES_SUFFIX = "types";
+
+	private static final byte ABSENT = 0;
+
+	private final String name;
+	private final File directory;
+	private final String prefix;
+
+	private volatile NeoMappedArray types;
+	private final NeoMappedArray[] values = new NeoMappedArray[Type.values().length];
+
+	/**
+	 * Open a column, the files are created if they do not exist
+	 *
+	 * @param name
+	 *            the attribute name
+	 * @param directory
+	 *            the columns directory
+	 * @param prefix
+	 *            the prefix of the column files
+	 * @param length
+	 *            the initial number of elements
+	 * @param readOnly
+	 * @throws TurnusException
+	 */
+	NeoColumn(String name, File directory, String prefix, long length, boolean readOnly) throws TurnusException {
+		this.name = name;
+		this.directory = directory;
+		this.prefix = prefix;
+		if (readOnly) {
+			types = NeoMappedArray.open(getFile(TYPES_SUFFIX), NeoMappedArray.BYTE);
+			for (Type type : Type.values()) {
+				File file = getFile(type.suffix);
+				if (file.exists()) {
+					values[type.ordinal()] = NeoMappedArray.open(file, type.elementSize);
+				}
+			}
+		} else {
+			map(length);
+		}
+	}
+
+	/**
+	 * Return the attribute name
+	 *
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the number of ids covered by the column files
+	 *
+	 * @return
+	 */
+	public long length() {
+		return types.length();
+	}
+
+	/**
+	 * Return the type of the value of an id
+	 *
+	 * @param id
+	 * @return the type or <code>null</code> if there is no value
+	 */
+	public Type getType(long id) {
+		byte code = id < types.length() ? types.getByte(id) : ABSENT;
+		return code == ABSENT ? null : Type.values()[code - 1];
+	}
+
+	/**
+	 * Check if there is a value for an id
+	 *
+	 * @param id
+	 * @return
+	 */
+	public boolean has(long id) {
+		return id < types.length() && types.getByte(id) != ABSENT;
+	}
+
+	/**
+	 * Return the value of an id
+	 *
+	 * @param id
+	 * @return the value or <code>null</code> if there is none
+	 */
+	public Object get(long id) {
+		Type type = getType(id);
+		if (type == null) {
+			return null;
+		}
+		NeoMappedArray array = values[type.ordinal()];
+		switch (type) {
+		case INT:
+			return array.getInt(id);
+		case LONG:
+			return array.getLong(id);
+		case DOUBLE:
+			return Double.longBitsToDouble(array.getLong(id));
+		default:
+			return array.getByte(id) != 0;
+		}
+	}
+
+	/**
+	 * Return the value of an id as a <code>long</code>. Double values are
+	 * truncated, boolean values are 0 or 1.
+	 *
+	 * @param id
+	 * @param defaultValue
+	 *            the value returned if there is none
+	 * @return
+	 */
+	public long getLong(long id, long defaultValue) {
+		Type type = getType(id);
+		if (type == null) {
+			return defaultValue;
+		}
+		NeoMappedArray array = values[type.ordinal()];
+		switch (type) {
+		case INT:
+			return array.getInt(id);
+		case LONG:
+			return array.getLong(id);
+		case DOUBLE:
+			return (long) Double.longBitsToDouble(array.getLong(id));
+		default:
+			return array.getByte(id);
+		}
+	}
+
+	/**
+	 * Return the value of an id as a <code>double</code>. Boolean values are 0
+	 * or 1.
+	 *
+	 * @param id
+	 * @param defaultValue
+	 *            the value returned if there is none
+	 * @return
+	 */
+	public double getDouble(long id, double defaultValue) {
+		Type type = getType(id);
+		if (type == null) {
+			return defaultValue;
+		}
+		if (type == Type.DOUBLE) {
+			return Double.longBitsToDouble(values[type.ordinal()].getLong(id));
+		}
+		return getLong(id, 0);
+	}
+
+	/**
+	 * Copy the values of the ids from 0 to {@link #length()} in an array
+	 *
+	 * @param defaultValue
+	 *            the value of the ids without a value
+	 * @return
+	 */
+	public long[] toLongArray(long defaultValue) {
+		long[] array = new long[checkArrayLength()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = getLong(i, defaultValue);
+		}
+		return array;
+	}
+
+	/**
+	 * Copy the values of the ids from 0 to {@link #length()} in an array
+	 *
+	 * @param defaultValue
+	 *            the value of the ids without a value
+	 * @return
+	 */
+	public double[] toDoubleArray(double defaultValue) {
+		double[] array = new double[checkArrayLength()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = getDouble(i, defaultValue);
+		}
+		return array;
+	}
+
+	/**
+	 * Store the value of an id, replacing the value of any other type
+	 *
+	 * @param id
+	 * @param value
+	 * @return <code>false</code> if the value cannot be stored in a column
+	 * @throws TurnusException
+	 */
+	boolean set(long id, Object value) throws TurnusException {
+		Type type = Type.of(value);
+		if (type == null) {
+			return false;
+		}
+		if (id >= types.length()) {
+			map(Math.max(id + 1, types.length() + types.length() / 2));
+		}
+		NeoMappedArray array = values[type.ordinal()];
+		if (array == null) {
+			array = NeoMappedArray.openWritable(getFile(type.suffix), types.length(), type.elementSize);
+			values[type.ordinal()] = array;
+		}
+		switch (type) {
+		case INT:
+			array.setInt(id, (Integer) value);
+			break;
+		case LONG:
+			array.setLong(id, (Long) value);
+			break;
+		case DOUBLE:
+			array.setLong(id, Double.doubleToRawLongBits((Double) value));
+			break;
+		default:
+			array.setByte(id, (byte) ((Boolean) value ? 1 : 0));
+			break;
+		}
+		// the type is written last: a reader never sees a type without value
+		types.setByte(id, type.code());
+		return true;
+	}
+
+	/**
+	 * Remove the value of an id
+	 *
+	 * @param id
+	 * @return <code>true</code> if there was a value
+	 */
+	boolean remove(long id) {
+		if (!has(id)) {
+			return false;
+		}
+		types.setByte(id, ABSENT);
+		return true;
+	}
+
+	@Override
+	public void close() {
+		types.close();
+		for (NeoMappedArray array : values) {
+			if (array != null) {
+				array.close();
+			}
+		}
+	}
+
+	/**
+	 * Map (or remap) the column files with the given minimum length
+	 */
+	private void map(long length) throws TurnusException {
+		if (types != null) {
+			close();
+		}
+		NeoMappedArray newTypes = NeoMappedArray.openWritable(getFile(TYPES_SUFFIX), length, NeoMappedArray.BYTE);
+		for (Type type : Type.values()) {
+			File file = getFile(type.suffix);
+			if (file.exists()) {
+				values[type.ordinal()] = NeoMappedArray.openWritable(file, newTypes.length(), type.elementSize);
+			}
+		}
+		types = newTypes;
+	}
+
+	private int checkArrayLength() {
+		if (types.length() > Integer.MAX_VALUE) {
+			throw new TurnusRuntimeException("The column \"" + name + "\" is too large for an array");
+		}
+		return (int) types.length();
+	}
+
+	private File getFile(String suffix) {
+		return new File(directory, prefix + suffix);
+	}
+
+}
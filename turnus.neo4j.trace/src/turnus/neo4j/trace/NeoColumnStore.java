@@ -0,0 +1,257 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import turnus.common.TurnusException;
+import turnus.common.io.Logger;
+
+/**
+ * The columnar attribute store of a trace, in the {@link NeoConstants#COLUMNS_PATH_NAME}
+ * directory of the database. Each step or dependency attribute stored here has
+ * its own {@link NeoColumn}, indexed by the node or relationship id. The
+ * column files are named <code>step.&lt;name&gt;.&lt;type&gt;</code> or
+ * <code>dependency.&lt;name&gt;.&lt;type&gt;</code>, where the name is URL
+ * encoded.
+ *
+ * Columns are created by a single writer thread, they can be read by
+ * concurrent threads.
+ *
+ */
+public class NeoColumnStore implements AutoCloseable {
+
+	private static final String STEP_PREFIX = "step";
+	private static final String DEPENDENCY_PREFIX = "dependency";
+	private static final String ENCODING = "UTF-8";
+
+	/**
+	 * Return the columns directory of a trace database
+	 *
+	 * @param dbPath
+	 * @return
+	 */
+	public static File getPath(File dbPath) {
+		return new File(dbPath, NeoConstants.COLUMNS_PATH_NAME);
+	}
+
+	private final File directory;
+	private final boolean readOnly;
+	private final long steps;
+	private final long dependencies;
+	private final Map<String, NeoColumn> stepColumns = new ConcurrentHashMap<>();
+	private final Map<String, NeoColumn> dependencyColumns = new ConcurrentHashMap<>();
+
+	/**
+	 * Open the columns of a trace database
+	 *
+	 * @param dbPath
+	 * @param steps
+	 *            the initial length of a new step column
+	 * @param dependencies
+	 *            the initial length of a new dependency column
+	 * @param readOnly
+	 * @throws TurnusException
+	 */
+	public NeoColumnStore(File dbPath, long steps, long dependencies, boolean readOnly) throws TurnusException {
+		this.directory = getPath(dbPath);
+		this.readOnly = readOnly;
+		this.steps = steps;
+		this.dependencies = dependencies;
+
+		if (!readOnly) {
+			directory.mkdirs();
+		}
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		String suffix = "." + NeoColumn.TYPES_SUFFIX;
+		for (File file : files) {
+			String fileName = file.getName();
+			int dot = fileName.indexOf('.');
+			if (!fileName.endsWith(suffix) || dot < 0 || dot == fileName.length() - suffix.length()) {
+				continue;
+			}
+			boolean node = fileName.substring(0, dot).equals(STEP_PREFIX);
+			String name = decode(fileName.substring(dot + 1, fileName.length() - suffix.length()));
+			getColumns(node).put(name, openColumn(node, name));
+		}
+		Logger.debug("Attribute columns: %d step, %d dependency", stepColumns.size(), dependencyColumns.size());
+	}
+
+	/**
+	 * Return the column of a step or a dependency attribute
+	 *
+	 * @param node
+	 *            <code>true</code> for a step, <code>false</code> for a
+	 *            dependency
+	 * @param name
+	 * @return the column or <code>null</code> if the attribute is not stored
+	 *         in a column
+	 */
+	public NeoColumn getColumn(boolean node, String name) {
+		return getColumns(node).get(name);
+	}
+
+	/**
+	 * Return the names of the step or dependency attributes stored in columns
+	 *
+	 * @param node
+	 * @return
+	 */
+	public Set<String> getNames(boolean node) {
+		return Collections.unmodifiableSet(getColumns(node).keySet());
+	}
+
+	/**
+	 * Return the value of an attribute
+	 *
+	 * @param node
+	 * @param id
+	 * @param name
+	 * @return the value or <code>null</code> if it is not stored in a column
+	 */
+	public Object get(boolean node, long id, String name) {
+		NeoColumn column = getColumns(node).get(name);
+		return column != null ? column.get(id) : null;
+	}
+
+	/**
+	 * Check if an attribute value is stored in a column
+	 *
+	 * @param node
+	 * @param id
+	 * @param name
+	 * @return
+	 */
+	public boolean has(boolean node, long id, String name) {
+		NeoColumn column = getColumns(node).get(name);
+		return column != null && column.has(id);
+	}
+
+	/**
+	 * Check if any attribute value of an id is stored in a column
+	 *
+	 * @param node
+	 * @param id
+	 * @return
+	 */
+	public boolean hasAny(boolean node, long id) {
+		for (NeoColumn column : getColumns(node).values()) {
+			if (column.has(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Store an attribute value in its column, which is created if needed
+	 *
+	 * @param node
+	 * @param id
+	 * @param name
+	 * @param value
+	 * @return <code>false</code> if the value type cannot be stored in a
+	 *         column
+	 * @throws TurnusException
+	 */
+	public boolean set(boolean node, long id, String name, Object value) throws TurnusException {
+		if (NeoColumn.Type.of(value) == null) {
+			return false;
+		}
+		Map<String, NeoColumn> columns = getColumns(node);
+		NeoColumn column = columns.get(name);
+		if (column == null) {
+			column = openColumn(node, name);
+			columns.put(name, column);
+		}
+		return column.set(id, value);
+	}
+
+	/**
+	 * Remove an attribute value from its column
+	 *
+	 * @param node
+	 * @param id
+	 * @param name
+	 * @return <code>true</code> if the value was stored in a column
+	 */
+	public boolean remove(boolean node, long id, String name) {
+		NeoColumn column = getColumns(node).get(name);
+		return column != null && column.remove(id);
+	}
+
+	@Override
+	public void close() {
+		for (NeoColumn column : stepColumns.values()) {
+			column.close();
+		}
+		for (NeoColumn column : dependencyColumns.values()) {
+			column.close();
+		}
+	}
+
+	private NeoColumn openColumn(boolean node, String name) throws TurnusException {
+		String prefix = (node ? STEP_PREFIX : DEPENDENCY_PREFIX) + "." + encode(name) + ".";
+		return new NeoColumn(name, directory, prefix, node ? steps : dependencies, readOnly);
+	}
+
+	private Map<String, NeoColumn> getColumns(boolean node) {
+		return node ? stepColumns : dependencyColumns;
+	}
+
+	private static String encode(String name) throws TurnusException {
+		try {
+			return URLEncoder.encode(name, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new TurnusException("The attribute name " + name + " cannot be encoded", e);
+		}
+	}
+
+	private static String decode(String name) throws TurnusException {
+		try {
+			return URLDecoder.decode(name, ENCODING);
+		} catch (UnsupportedEncodingException e) {
+			throw new TurnusException("The attribute file name " + name + " cannot be decoded", e);
+		}
+	}
+
+}
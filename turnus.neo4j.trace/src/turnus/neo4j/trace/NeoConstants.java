@@ -52,6 +52,10 @@ public class NeoConstants {
 		TOPOLOGICAL
 	}
 
+	public static enum ChainType implements RelationshipType {
+		ACTOR_NEXT, ACTION_NEXT
+	}
+
 	public static enum RelType implements RelationshipType {
 		FSM, GUARD, PORT, TOKENS, VARIABLE, MERGED, SCHEDULER, UNKONW;
 
@@ -86,20 +90,104 @@ public class NeoConstants {
 			"neostore.propertystore.db.arrays.mapped_memory", "0M");
 	
 	public static int MAX_TRANSACTIONS = 500000;
-	public static int CACHE_STEPS_MAP = 100000;
-	public static int CACHE_DEPENDENCIES_MAP = 100000;
+	/** the steps and dependencies caches sizes, in bytes */
+	public static long CACHE_STEPS_SIZE = NeoCache.heapFraction(0.05);
+	public static long CACHE_DEPENDENCIES_SIZE = NeoCache.heapFraction(0.05);
+	public static long VALUE_CACHE_SIZE = 64L * 1024 * 1024;
+	public static int STREAM_CHUNK_SIZE = 4096;
+
+	public static final String CONFIG_PIPELINE = "turnus.neo4j.pipeline";
+	public static final String CONFIG_PIPELINE_ENCODERS = "turnus.neo4j.pipeline.encoders";
+	public static final String CONFIG_PIPELINE_BATCH_SIZE = "turnus.neo4j.pipeline.batchSize";
+	public static final String CONFIG_PIPELINE_QUEUE_SIZE = "turnus.neo4j.pipeline.queueSize";
+
+	public static boolean DEFAULT_PIPELINE = false;
+	public static int DEFAULT_PIPELINE_ENCODERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+	public static int DEFAULT_PIPELINE_BATCH_SIZE = 10000;
+	public static int DEFAULT_PIPELINE_QUEUE_SIZE = 16;
+
+	public static final String CONFIG_COMPACT_DEPENDENCIES = "turnus.neo4j.compactDependencies";
+	public static boolean DEFAULT_COMPACT_DEPENDENCIES = false;
+
+	public static final String CONFIG_IMPORT_PROCESSORS = "turnus.neo4j.import.processors";
+	public static int DEFAULT_IMPORT_PROCESSORS = Runtime.getRuntime().availableProcessors();
+	public static final String IMPORT_PATH_SUFFIX = ".import";
+
+	/**
+	 * the number of records between two checkpoints. Only the insertion is
+	 * resumable: the checkpoint does not record a position in the trace file,
+	 * so a resumed build parses the whole trace again and skips inserting the
+	 * records it covers. Each checkpoint shuts down and reopens the batch
+	 * inserter, which rebuilds the counts store and the deferred indexes: its
+	 * cost grows with the whole store, so the interval cannot be lower than
+	 * {@link #MIN_CHECKPOINT_INTERVAL}. The batch inserter store is not
+	 * crash-safe: the records written after the last checkpoint are recovered
+	 * on a best-effort basis
+	 */
+	public static final String CONFIG_CHECKPOINT_INTERVAL = "turnus.neo4j.checkpointInterval";
+	public static long DEFAULT_CHECKPOINT_INTERVAL = 0;
+	public static long MIN_CHECKPOINT_INTERVAL = 10000000;
+	public static final String CHECKPOINT_FILE = "turnus.checkpoint";
+
+	public static final String CONFIG_TOPOLOGICAL_CHAIN = "turnus.neo4j.topologicalChain";
+	public static boolean DEFAULT_TOPOLOGICAL_CHAIN = false;
+
+	public static final String CONFIG_ACTOR_CHAINS = "turnus.neo4j.actorChains";
+	public static final String CONFIG_ACTION_CHAINS = "turnus.neo4j.actionChains";
+	public static boolean DEFAULT_ACTOR_CHAINS = false;
+	public static boolean DEFAULT_ACTION_CHAINS = false;
+	public static final String CHAINS_FILE = "turnus.chains";
+
+	public static final String CSR_PATH_NAME = "turnus.csr";
+	public static final String TOPOLOGICAL_INDEX_FILE = "turnus.topological";
+
+	public static final String CONFIG_LEVEL_ORDER = "turnus.neo4j.levelOrder";
+	public static boolean DEFAULT_LEVEL_ORDER = false;
+
+	public static final String CONFIG_COLUMN_STORE = "turnus.neo4j.columnStore";
+	public static boolean DEFAULT_COLUMN_STORE = false;
+	public static final String COLUMNS_PATH_NAME = "turnus.columns";
+
+	public static final String CONFIG_STORE_MEMORY = "turnus.neo4j.store.memory";
+	public static final String CONFIG_STORE_CACHE_TYPE = "turnus.neo4j.store.cacheType";
+	public static final String CONFIG_STORE_PAGE_SIZE = "turnus.neo4j.store.pageSize";
+	public static final String CONFIG_STORE_STRING_BLOCK_SIZE = "turnus.neo4j.store.stringBlockSize";
+	public static final String CONFIG_STORE_ARRAY_BLOCK_SIZE = "turnus.neo4j.store.arrayBlockSize";
+	/** an empty string or 0 means that the value is chosen automatically */
+	public static String DEFAULT_STORE_MEMORY = "";
+	public static String DEFAULT_STORE_CACHE_TYPE = "";
+	public static String DEFAULT_STORE_PAGE_SIZE = "";
+	public static int DEFAULT_STORE_STRING_BLOCK_SIZE = 0;
+	public static int DEFAULT_STORE_ARRAY_BLOCK_SIZE = 0;
+
+	public static final String CONFIG_TRANSACTION_OPERATIONS = "turnus.neo4j.transaction.operations";
+	public static final String CONFIG_TRANSACTION_SIZE = "turnus.neo4j.transaction.size";
+	public static long DEFAULT_TRANSACTION_SIZE = 64L * 1024 * 1024;
+
+	public static final String CONFIG_WRITE_BEHIND = "turnus.neo4j.writeBehind";
+	public static final String CONFIG_WRITE_BEHIND_BATCH_SIZE = "turnus.neo4j.writeBehind.batchSize";
+	public static final String CONFIG_WRITE_BEHIND_ASYNC = "turnus.neo4j.writeBehind.async";
+	public static boolean DEFAULT_WRITE_BEHIND = false;
+	public static int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 50000;
+	public static boolean DEFAULT_WRITE_BEHIND_ASYNC = false;
+
+	public static final String CONFIG_READ_ONLY = "turnus.neo4j.readOnly";
+	public static boolean DEFAULT_READ_ONLY = false;
 
 	public static final String TURNUS_PROPERTY = "_turnus_";
+	public static final String DICTIONARY_FILE = "turnus.dictionary";
 
 	public static final String LB_STEP = TURNUS_PROPERTY.concat("step");
 
 	public static final String SP_ACTOR = TURNUS_PROPERTY.concat("actor");
 	public static final String SP_ID = TURNUS_PROPERTY.concat("id");
 	public static final String SP_ACTION = TURNUS_PROPERTY.concat("action");
-	public static final String SP_ACTOR_CLASS = TURNUS_PROPERTY.concat("action");
+	public static final String SP_ACTOR_CLASS = TURNUS_PROPERTY.concat("actor-class");
 	public static final String SP_TOPOLOGICAL_ORDER = TURNUS_PROPERTY.concat("tid");
 	public static final String SP_READ_TOKENS = TURNUS_PROPERTY.concat("rtokens");
 	public static final String SP_WRITE_TOKENS = TURNUS_PROPERTY.concat("wtokens");
+	public static final String SP_READ_TOKENS_COUNTS = TURNUS_PROPERTY.concat("rtokens-count");
+	public static final String SP_WRITE_TOKENS_COUNTS = TURNUS_PROPERTY.concat("wtokens-count");
 	public static final String SP_READ_VARIABLES = TURNUS_PROPERTY.concat("rvariables");
 	public static final String SP_WRITE_VARIABLES = TURNUS_PROPERTY.concat("wvariables");
 
@@ -117,4 +205,14 @@ public class NeoConstants {
 	public static final String DP_VARIABLE = TURNUS_PROPERTY.concat("variables");
 	public static final String DP_DIRECTION = TURNUS_PROPERTY.concat("direction");
 
+	public static final String TP_STORE_CONF = TURNUS_PROPERTY.concat("conf.");
+	public static final String TP_FORMAT_VERSION = TURNUS_PROPERTY.concat("format");
+	public static final String TP_COMPACT_DEPENDENCIES = TURNUS_PROPERTY.concat("compact-dependencies");
+	public static final String TP_ID_ORDERED = TURNUS_PROPERTY.concat("id-ordered");
+	public static final String TP_REVISION = TURNUS_PROPERTY.concat("revision");
+	public static final String TP_LEVELS = TURNUS_PROPERTY.concat("levels");
+	public static final String TP_LEVEL_MAX_WIDTH = TURNUS_PROPERTY.concat("level-max-width");
+	public static final String TP_LEVEL_HISTOGRAM = TURNUS_PROPERTY.concat("level-histogram");
+	public static final String TP_LEVEL_REVISION = TURNUS_PROPERTY.concat("level-revision");
+
 }
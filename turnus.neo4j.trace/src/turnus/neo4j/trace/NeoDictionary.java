@@ -0,0 +1,151 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import turnus.common.TurnusException;
+
+/**
+ * A dictionary of the actor, action, port, guard and variable names of a
+ * trace. Each name is stored in the database as a small integer code. The
+ * dictionary is built during the trace ingestion and saved next to the
+ * database store.
+ *
+ */
+public class NeoDictionary {
+
+	/**
+	 * Load a dictionary from a file
+	 *
+	 * @param file
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoDictionary load(File file) throws TurnusException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			NeoDictionary dictionary = new NeoDictionary();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++) {
+				dictionary.encode(in.readUTF());
+			}
+			return dictionary;
+		} catch (Exception e) {
+			throw new TurnusException("The trace dictionary cannot be loaded from " + file, e);
+		}
+	}
+
+	private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+	private volatile String[] names = new String[64];
+	private int size;
+
+	/**
+	 * Return the code of a name. If the name is not yet in the dictionary, a
+	 * new code is assigned to it. This method is thread safe.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public int encode(String name) {
+		Integer code = codes.get(name);
+		if (code == null) {
+			synchronized (this) {
+				code = codes.get(name);
+				if (code == null) {
+					if (size == names.length) {
+						names = Arrays.copyOf(names, size * 2);
+					}
+					code = size;
+					names[size++] = name;
+					codes.put(name, code);
+				}
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * Return the code of a name without adding it to the dictionary
+	 *
+	 * @param name
+	 * @return the code or <code>null</code> if the name is unknown
+	 */
+	public Integer lookup(String name) {
+		return codes.get(name);
+	}
+
+	/**
+	 * Return the name of a code
+	 *
+	 * @param code
+	 * @return
+	 */
+	public String decode(int code) {
+		return names[code];
+	}
+
+	/**
+	 * Return the number of names in this dictionary
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Store this dictionary in a file
+	 *
+	 * @param file
+	 * @throws TurnusException
+	 */
+	public synchronized void store(File file) throws TurnusException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeUTF(names[i]);
+			}
+		} catch (Exception e) {
+			throw new TurnusException("The trace dictionary cannot be stored in " + file, e);
+		}
+	}
+
+}
@@ -0,0 +1,717 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.neo4j.trace.NeoConstants.CSR_PATH_NAME;
+import static turnus.neo4j.trace.NeoConstants.DP_TOKENS;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.LongStream;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import turnus.common.TurnusException;
+import turnus.common.TurnusRuntimeException;
+import turnus.common.io.Logger;
+import turnus.common.io.ProgressPrinter;
+import turnus.common.util.Timer;
+import turnus.model.trace.Dependency.Kind;
+import turnus.model.trace.util.TraceProperties;
+
+/**
+ * A read-only compressed sparse row (CSR) snapshot of the dependency graph,
+ * stored in memory-mapped files next to the database store. For each direction
+ * the dependencies of step <code>i</code> are the entries
+ * <code>[getStart(i), getEnd(i))</code> of the neighbour, kind, token count and
+ * relationship id arrays. Structural queries are answered with sequential
+ * reads of these arrays, without running the database kernel.
+ *
+ * The snapshot is built once per store and reused while the store revision
+ * it has been built from is the current one (see
+ * {@link NeoTraceFormat#getRevision(TraceProperties)}). The derived arrays
+ * (topological order and levels) are computed on demand and saved with it,
+ * unless the snapshot has been opened read-only: they are then kept in
+ * temporary files of <code>java.io.tmpdir</code>, deleted when it is closed.
+ *
+ */
+public class NeoGraphSnapshot implements AutoCloseable {
+
+	/** the snapshot files version */
+	private static final int VERSION = 1;
+
+	private static final String HEADER_FILE = "snapshot.properties";
+	private static final String TOPOLOGICAL_FILE = "topological.order";
+	private static final String INDEGREE_FILE = "topological.indegree";
+	private static final String LEVELS_FILE = "levels";
+	private static final String LEVEL_STEPS_FILE = "levels.steps";
+	/** written last: without it the levels are not valid */
+	private static final String LEVEL_OFFSETS_FILE = "levels.offsets";
+
+	private static final String H_VERSION = "version";
+	private static final String H_STEPS = "steps";
+	private static final String H_DEPENDENCIES = "dependencies";
+	private static final String H_REVISION = "revision";
+
+	/**
+	 * The adjacency arrays of one direction
+	 */
+	private static class Adjacency {
+		private final NeoMappedArray offsets;
+		private final NeoMappedArray neighbours;
+		private final NeoMappedArray kinds;
+		private final NeoMappedArray counts;
+		private final NeoMappedArray relationships;
+
+		private Adjacency(File path, String prefix, long steps, long dependencies) throws TurnusException {
+			offsets = NeoMappedArray.create(new File(path, prefix + ".offsets"), steps + 1, NeoMappedArray.LONG);
+			neighbours = NeoMappedArray.create(new File(path, prefix + ".neighbours"), dependencies,
+					NeoMappedArray.LONG);
+			kinds = NeoMappedArray.create(new File(path, prefix + ".kinds"), dependencies, NeoMappedArray.BYTE);
+			counts = NeoMappedArray.create(new File(path, prefix + ".counts"), dependencies, NeoMappedArray.INT);
+			relationships = NeoMappedArray.create(new File(path, prefix + ".relationships"), dependencies,
+					NeoMappedArray.LONG);
+		}
+
+		private Adjacency(File path, String prefix) throws TurnusException {
+			offsets = NeoMappedArray.open(new File(path, prefix + ".offsets"), NeoMappedArray.LONG);
+			neighbours = NeoMappedArray.open(new File(path, prefix + ".neighbours"), NeoMappedArray.LONG);
+			kinds = NeoMappedArray.open(new File(path, prefix + ".kinds"), NeoMappedArray.BYTE);
+			counts = NeoMappedArray.open(new File(path, prefix + ".counts"), NeoMappedArray.INT);
+			relationships = NeoMappedArray.open(new File(path, prefix + ".relationships"), NeoMappedArray.LONG);
+		}
+
+		private void close() {
+			offsets.close();
+			neighbours.close();
+			kinds.close();
+			counts.close();
+			relationships.close();
+		}
+	}
+
+	/**
+	 * Return the snapshot directory of a database
+	 *
+	 * @param dbPath
+	 * @return
+	 */
+	public static File getPath(File dbPath) {
+		return new File(dbPath, CSR_PATH_NAME);
+	}
+
+	/**
+	 * Open the snapshot of a database if it exists and it is up to date
+	 *
+	 * @param dbPath
+	 *            the database directory
+	 * @param properties
+	 *            the current trace properties
+	 * @param readOnly
+	 *            if nothing can be written in the snapshot directory
+	 * @return the snapshot or <code>null</code>
+	 */
+	public static NeoGraphSnapshot open(File dbPath, TraceProperties properties, boolean readOnly) {
+		File path = getPath(dbPath);
+		File headerFile = new File(path, HEADER_FILE);
+		if (!headerFile.exists()) {
+			return null;
+		}
+
+		Properties header = new Properties();
+		try (InputStream in = new FileInputStream(headerFile)) {
+			header.load(in);
+			if (Integer.parseInt(header.getProperty(H_VERSION)) != VERSION
+					|| Long.parseLong(header.getProperty(H_STEPS)) != properties.getSteps()
+					|| Long.parseLong(header.getProperty(H_REVISION)) != NeoTraceFormat.getRevision(properties)) {
+				Logger.debug("The graph snapshot in \"%s\" is out of date", path);
+				return null;
+			}
+			return new NeoGraphSnapshot(path, Long.parseLong(header.getProperty(H_STEPS)),
+					Long.parseLong(header.getProperty(H_DEPENDENCIES)), new Adjacency(path, "out"),
+					new Adjacency(path, "in"), readOnly);
+		} catch (Exception e) {
+			Logger.warning("The graph snapshot in \"%s\" cannot be opened: %s", path, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Build the snapshot of a database, replacing the existing one. The
+	 * structure is read with an adjacency cursor, step by step in id order;
+	 * the relationships are loaded only for the token counts.
+	 *
+	 * @param dbPath
+	 *            the database directory
+	 * @param properties
+	 *            the trace properties
+	 * @param graphDb
+	 *            the opened database
+	 * @param cursor
+	 *            an adjacency cursor of the database
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoGraphSnapshot build(File dbPath, TraceProperties properties, GraphDatabaseService graphDb,
+			NeoAdjacencyCursor cursor) throws TurnusException {
+		File path = getPath(dbPath);
+		File headerFile = new File(path, HEADER_FILE);
+		// the header is written last: without it the snapshot is not valid
+		headerFile.delete();
+		new File(path, TOPOLOGICAL_FILE).delete();
+		new File(path, LEVEL_OFFSETS_FILE).delete();
+		if (!path.exists() && !path.mkdirs()) {
+			throw new TurnusException("The graph snapshot directory " + path + " cannot be created");
+		}
+
+		Timer timer = new Timer();
+		long steps = properties.getSteps();
+		long dependencies = 0;
+		for (long i = 0; i < steps; i++) {
+			dependencies += cursor.degree(i, Direction.OUTGOING, null);
+		}
+
+		Adjacency out = new Adjacency(path, "out", steps, dependencies);
+		Adjacency in = new Adjacency(path, "in", steps, dependencies);
+		ProgressPrinter progress = new ProgressPrinter("Trace graph snapshot", steps);
+		long outPosition = 0;
+		long inPosition = 0;
+		for (long i = 0; i < steps; i++) {
+			out.offsets.setLong(i, outPosition);
+			for (cursor.outgoings(i); cursor.next();) {
+				outPosition = append(out, outPosition, cursor, graphDb);
+			}
+			in.offsets.setLong(i, inPosition);
+			for (cursor.incomings(i); cursor.next();) {
+				inPosition = append(in, inPosition, cursor, graphDb);
+			}
+			progress.increment();
+		}
+		out.offsets.setLong(steps, outPosition);
+		in.offsets.setLong(steps, inPosition);
+		progress.finish();
+
+		if (outPosition != dependencies || inPosition != dependencies) {
+			out.close();
+			in.close();
+			throw new TurnusException("The dependencies changed while building the graph snapshot");
+		}
+
+		Properties header = new Properties();
+		header.setProperty(H_VERSION, Integer.toString(VERSION));
+		header.setProperty(H_STEPS, Long.toString(steps));
+		header.setProperty(H_DEPENDENCIES, Long.toString(dependencies));
+		header.setProperty(H_REVISION, Long.toString(NeoTraceFormat.getRevision(properties)));
+		out.close();
+		in.close();
+		try (OutputStream os = new FileOutputStream(headerFile)) {
+			header.store(os, "TURNUS trace graph snapshot");
+		} catch (Exception e) {
+			throw new TurnusException("The graph snapshot header cannot be stored in " + path, e);
+		}
+
+		Logger.info("Graph snapshot of %d steps and %d dependencies built in %d s", steps, dependencies,
+				timer.getElapsedS());
+		return new NeoGraphSnapshot(path, steps, dependencies, out, in, false);
+	}
+
+	private static long append(Adjacency adjacency, long position, NeoAdjacencyCursor cursor,
+			GraphDatabaseService graphDb) {
+		Kind kind = cursor.getKind();
+		int count = 0;
+		if (kind == Kind.TOKENS) {
+			Object tokens = graphDb.getRelationshipById(cursor.getRelationshipId()).getProperty(DP_TOKENS, null);
+			count = tokens != null ? ((Number) tokens).intValue() : 0;
+		}
+		adjacency.neighbours.setLong(position, cursor.getNeighbourId());
+		adjacency.kinds.setByte(position, (byte) cursor.getKindCode());
+		adjacency.counts.setInt(position, count);
+		adjacency.relationships.setLong(position, cursor.getRelationshipId());
+		return position + 1;
+	}
+
+	private final File path;
+	private final long steps;
+	private final long dependencies;
+	private final Adjacency out;
+	private final Adjacency in;
+	private final boolean readOnly;
+	/** the temporary files of the derived arrays of a read-only snapshot */
+	private final List<File> tmpFiles = new ArrayList<>();
+	private NeoMappedArray topologicalOrder;
+	/** the level of each step */
+	private NeoMappedArray levels;
+	/** the steps grouped by level, in id order inside a level */
+	private NeoMappedArray levelSteps;
+	/** the position of the first step of each level in levelSteps */
+	private NeoMappedArray levelOffsets;
+
+	private NeoGraphSnapshot(File path, long steps, long dependencies, Adjacency out, Adjacency in,
+			boolean readOnly) {
+		this.path = path;
+		this.steps = steps;
+		this.dependencies = dependencies;
+		this.out = out;
+		this.in = in;
+		this.readOnly = readOnly;
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	public long getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Return the position of the first dependency of a step
+	 *
+	 * @param step
+	 * @param direction
+	 *            {@link Direction#INCOMING} or {@link Direction#OUTGOING}
+	 * @return
+	 */
+	public long getStart(long step, Direction direction) {
+		return adjacency(direction).offsets.getLong(step);
+	}
+
+	/**
+	 * Return the position after the last dependency of a step
+	 *
+	 * @param step
+	 * @param direction
+	 *            {@link Direction#INCOMING} or {@link Direction#OUTGOING}
+	 * @return
+	 */
+	public long getEnd(long step, Direction direction) {
+		return adjacency(direction).offsets.getLong(step + 1);
+	}
+
+	/**
+	 * Return the number of dependencies of a step
+	 *
+	 * @param step
+	 * @param direction
+	 *            {@link Direction#INCOMING}, {@link Direction#OUTGOING} or
+	 *            {@link Direction#BOTH}
+	 * @param kinds
+	 *            the dependency kinds, or <code>null</code> for all of them
+	 * @return
+	 */
+	public int getDegree(long step, Direction direction, Set<Kind> kinds) {
+		if (direction == Direction.BOTH) {
+			return getDegree(step, Direction.INCOMING, kinds) + getDegree(step, Direction.OUTGOING, kinds);
+		}
+		Adjacency adjacency = adjacency(direction);
+		long start = adjacency.offsets.getLong(step);
+		long end = adjacency.offsets.getLong(step + 1);
+		if (kinds == null) {
+			return (int) (end - start);
+		}
+		int degree = 0;
+		for (long i = start; i < end; i++) {
+			if (kinds.contains(getKind(i, direction))) {
+				degree++;
+			}
+		}
+		return degree;
+	}
+
+	/**
+	 * Return the step at the other end of a dependency
+	 *
+	 * @param position
+	 *            the dependency position
+	 * @param direction
+	 * @return
+	 */
+	public long getNeighbour(long position, Direction direction) {
+		return adjacency(direction).neighbours.getLong(position);
+	}
+
+	/**
+	 * Return the kind of a dependency
+	 *
+	 * @param position
+	 *            the dependency position
+	 * @param direction
+	 * @return
+	 */
+	public Kind getKind(long position, Direction direction) {
+		int code = adjacency(direction).kinds.getByte(position);
+		return code >= 0 ? Kind.values()[code] : null;
+	}
+
+	/**
+	 * Return the number of tokens of a {@link Kind#TOKENS} dependency
+	 *
+	 * @param position
+	 *            the dependency position
+	 * @param direction
+	 * @return the count or 0 for the other kinds
+	 */
+	public int getCount(long position, Direction direction) {
+		return adjacency(direction).counts.getInt(position);
+	}
+
+	/**
+	 * Return the relationship id of a dependency
+	 *
+	 * @param position
+	 *            the dependency position
+	 * @param direction
+	 * @return
+	 */
+	public long getRelationshipId(long position, Direction direction) {
+		return adjacency(direction).relationships.getLong(position);
+	}
+
+	/**
+	 * Return the step ids in topological order. The order is computed once
+	 * with Kahn's algorithm on the snapshot and saved with it; if the
+	 * dependencies already follow the id order, the ids are returned as they
+	 * are.
+	 *
+	 * @param idOrdered
+	 *            if the topological order is the id order
+	 * @param increasing
+	 *            <code>false</code> for the reversed order
+	 * @return
+	 */
+	public PrimitiveIterator.OfLong getTopologicalOrder(final boolean idOrdered, final boolean increasing) {
+		final NeoMappedArray order = idOrdered ? null : getTopologicalOrder();
+		return new PrimitiveIterator.OfLong() {
+			long position = increasing ? 0 : steps - 1;
+
+			@Override
+			public boolean hasNext() {
+				return increasing ? position < steps : position >= 0;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				long p = increasing ? position++ : position--;
+				return order == null ? p : order.getLong(p);
+			}
+		};
+	}
+
+	/**
+	 * Return the level of a step, i.e. the length of the longest dependency
+	 * path from a step without predecessors. The levels are computed once and
+	 * saved with the snapshot (see {@link #getLevelCount()}).
+	 *
+	 * @param step
+	 * @return
+	 */
+	public int getLevel(long step) {
+		computeLevels();
+		return levels.getInt(step);
+	}
+
+	/**
+	 * Return the number of levels. The levels are computed on the first call,
+	 * level by level: the steps of a level are processed in parallel.
+	 *
+	 * @return
+	 */
+	public int getLevelCount() {
+		computeLevels();
+		return (int) (levelOffsets.length() - 1);
+	}
+
+	/**
+	 * Return the number of steps of a level
+	 *
+	 * @param level
+	 * @return
+	 */
+	public long getLevelWidth(int level) {
+		computeLevels();
+		return levelOffsets.getLong(level + 1) - levelOffsets.getLong(level);
+	}
+
+	/**
+	 * Return the steps of a level, in increasing id order
+	 *
+	 * @param level
+	 * @return
+	 */
+	public long[] getLevelSteps(int level) {
+		computeLevels();
+		long start = levelOffsets.getLong(level);
+		long[] ids = new long[(int) (levelOffsets.getLong(level + 1) - start)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = levelSteps.getLong(start + i);
+		}
+		return ids;
+	}
+
+	/**
+	 * Return the step ids level by level, which is also a topological order
+	 *
+	 * @param increasing
+	 *            <code>false</code> for the reversed order
+	 * @return
+	 */
+	public PrimitiveIterator.OfLong getLevelOrder(final boolean increasing) {
+		computeLevels();
+		final NeoMappedArray order = levelSteps;
+		return new PrimitiveIterator.OfLong() {
+			long position = increasing ? 0 : steps - 1;
+
+			@Override
+			public boolean hasNext() {
+				return increasing ? position < steps : position >= 0;
+			}
+
+			@Override
+			public long nextLong() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return order.getLong(increasing ? position++ : position--);
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		out.close();
+		in.close();
+		if (topologicalOrder != null) {
+			topologicalOrder.close();
+		}
+		if (levelOffsets != null) {
+			levels.close();
+			levelSteps.close();
+			levelOffsets.close();
+		}
+		for (File file : tmpFiles) {
+			file.delete();
+		}
+	}
+
+	private Adjacency adjacency(Direction direction) {
+		switch (direction) {
+		case INCOMING:
+			return in;
+		case OUTGOING:
+			return out;
+		default:
+			throw new IllegalArgumentException("Unsupported direction " + direction);
+		}
+	}
+
+	/**
+	 * Create a temporary file for a derived array: in the snapshot directory,
+	 * or in <code>java.io.tmpdir</code> if the snapshot is read-only. The
+	 * names are unique: the snapshot can be shared by several read-only
+	 * processes.
+	 */
+	private File createTempFile(String name) throws IOException {
+		File file = File.createTempFile(name, ".tmp", readOnly ? null : path);
+		if (readOnly) {
+			file.deleteOnExit();
+		}
+		return file;
+	}
+
+	/**
+	 * Save the temporary file of a derived array with the snapshot. A
+	 * read-only snapshot keeps the temporary file until it is closed.
+	 *
+	 * @return the file to open
+	 */
+	private File save(File tmpFile, File file) throws TurnusException {
+		if (readOnly) {
+			tmpFiles.add(tmpFile);
+			return tmpFile;
+		}
+		file.delete();
+		if (!tmpFile.renameTo(file)) {
+			throw new TurnusException("The file " + tmpFile + " cannot be renamed to " + file);
+		}
+		return file;
+	}
+
+	private synchronized NeoMappedArray getTopologicalOrder() {
+		if (topologicalOrder != null) {
+			return topologicalOrder;
+		}
+
+		try {
+			File orderFile = new File(path, TOPOLOGICAL_FILE);
+			if (orderFile.exists()) {
+				topologicalOrder = NeoMappedArray.open(orderFile, NeoMappedArray.LONG);
+				return topologicalOrder;
+			}
+
+			// Kahn's algorithm: the order array is also the queue of the steps
+			// whose predecessors have all been visited
+			File tmpFile = createTempFile(TOPOLOGICAL_FILE);
+			File indegreeFile = createTempFile(INDEGREE_FILE);
+			long tail = 0;
+			try (NeoMappedArray order = NeoMappedArray.create(tmpFile, steps, NeoMappedArray.LONG);
+					NeoMappedArray indegree = NeoMappedArray.create(indegreeFile, steps, NeoMappedArray.INT)) {
+				for (long i = 0; i < steps; i++) {
+					int degree = (int) (in.offsets.getLong(i + 1) - in.offsets.getLong(i));
+					indegree.setInt(i, degree);
+					if (degree == 0) {
+						order.setLong(tail++, i);
+					}
+				}
+				for (long head = 0; head < tail; head++) {
+					long step = order.getLong(head);
+					long end = out.offsets.getLong(step + 1);
+					for (long e = out.offsets.getLong(step); e < end; e++) {
+						long target = out.neighbours.getLong(e);
+						int degree = indegree.getInt(target) - 1;
+						indegree.setInt(target, degree);
+						if (degree == 0) {
+							order.setLong(tail++, target);
+						}
+					}
+				}
+			}
+			indegreeFile.delete();
+			if (tail != steps) {
+				tmpFile.delete();
+				throw new TurnusRuntimeException("The dependency graph is not acyclic: only " + tail + " of "
+						+ steps + " steps can be sorted");
+			}
+			topologicalOrder = NeoMappedArray.open(save(tmpFile, orderFile), NeoMappedArray.LONG);
+			return topologicalOrder;
+		} catch (TurnusException | IOException e) {
+			throw new TurnusRuntimeException("The topological order cannot be computed", e);
+		}
+	}
+
+	private synchronized void computeLevels() {
+		if (levelOffsets != null) {
+			return;
+		}
+
+		try {
+			File offsetsFile = new File(path, LEVEL_OFFSETS_FILE);
+			if (offsetsFile.exists()) {
+				levels = NeoMappedArray.open(new File(path, LEVELS_FILE), NeoMappedArray.INT);
+				levelSteps = NeoMappedArray.open(new File(path, LEVEL_STEPS_FILE), NeoMappedArray.LONG);
+				levelOffsets = NeoMappedArray.open(offsetsFile, NeoMappedArray.LONG);
+				return;
+			}
+			if (steps > Integer.MAX_VALUE) {
+				throw new TurnusException("The levels of more than " + Integer.MAX_VALUE + " steps cannot be computed");
+			}
+
+			// a frontier-based Kahn's algorithm: all the steps of a frontier
+			// have the same level, and their successors are released in
+			// parallel with atomic in-degree counters
+			Timer timer = new Timer();
+			AtomicIntegerArray indegrees = new AtomicIntegerArray((int) steps);
+			LongStream.range(0, steps).parallel()
+					.forEach(i -> indegrees.set((int) i, (int) (in.offsets.getLong(i + 1) - in.offsets.getLong(i))));
+			long[] frontier = LongStream.range(0, steps).parallel().filter(i -> indegrees.get((int) i) == 0).toArray();
+
+			File levelsTmp = createTempFile(LEVELS_FILE);
+			File stepsTmp = createTempFile(LEVEL_STEPS_FILE);
+			LongArrayList offsets = new LongArrayList();
+			long position = 0;
+			try (NeoMappedArray levelsArray = NeoMappedArray.create(levelsTmp, steps, NeoMappedArray.INT);
+					NeoMappedArray stepsArray = NeoMappedArray.create(stepsTmp, steps, NeoMappedArray.LONG)) {
+				for (int level = 0; frontier.length > 0; level++) {
+					offsets.add(position);
+					for (long step : frontier) {
+						levelsArray.setInt(step, level);
+						stepsArray.setLong(position++, step);
+					}
+					frontier = Arrays.stream(frontier).parallel().flatMap(step -> {
+						LongStream.Builder released = LongStream.builder();
+						long end = out.offsets.getLong(step + 1);
+						for (long e = out.offsets.getLong(step); e < end; e++) {
+							long target = out.neighbours.getLong(e);
+							if (indegrees.decrementAndGet((int) target) == 0) {
+								released.add(target);
+							}
+						}
+						return released.build();
+					}).toArray();
+					Arrays.parallelSort(frontier);
+				}
+			}
+			offsets.add(position);
+			if (position != steps) {
+				levelsTmp.delete();
+				stepsTmp.delete();
+				throw new TurnusRuntimeException("The dependency graph is not acyclic: only " + position + " of "
+						+ steps + " steps have a level");
+			}
+
+			File offsetsTmp = createTempFile(LEVEL_OFFSETS_FILE);
+			try (NeoMappedArray offsetsArray = NeoMappedArray.create(offsetsTmp, offsets.size(), NeoMappedArray.LONG)) {
+				for (int i = 0; i < offsets.size(); i++) {
+					offsetsArray.setLong(i, offsets.getLong(i));
+				}
+			}
+			// the offsets file is saved last
+			File levelsFile = save(levelsTmp, new File(path, LEVELS_FILE));
+			File stepsFile = save(stepsTmp, new File(path, LEVEL_STEPS_FILE));
+			offsetsFile = save(offsetsTmp, offsetsFile);
+			Logger.debug("%d levels of %d steps computed in %d s", offsets.size() - 1, steps, timer.getElapsedS());
+
+			levels = NeoMappedArray.open(levelsFile, NeoMappedArray.INT);
+			levelSteps = NeoMappedArray.open(stepsFile, NeoMappedArray.LONG);
+			levelOffsets = NeoMappedArray.open(offsetsFile, NeoMappedArray.LONG);
+		} catch (TurnusException | IOException e) {
+			throw new TurnusRuntimeException("The step levels cannot be computed", e);
+		}
+	}
+
+}
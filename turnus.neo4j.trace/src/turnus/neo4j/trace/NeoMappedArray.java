@@ -0,0 +1,195 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import turnus.common.TurnusException;
+
+/**
+ * A fixed-length array of primitive values stored in a memory-mapped file. The
+ * file is mapped in segments of one gigabyte, so the array can be larger than
+ * the 2GB limit of a single mapped buffer. Elements are 1, 4 or 8 bytes long
+ * and never span two segments.
+ *
+ */
+public class NeoMappedArray implements AutoCloseable {
+
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	/** the element sizes, in bytes */
+	public static final int BYTE = 1;
+	public static final int INT = 4;
+	public static final int LONG = 8;
+
+	/**
+	 * Create a new array, the file is overwritten
+	 *
+	 * @param file
+	 * @param length
+	 *            the number of elements
+	 * @param elementSize
+	 *            the element size, in bytes
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoMappedArray create(File file, long length, int elementSize) throws TurnusException {
+		file.delete();
+		return new NeoMappedArray(file, length, elementSize, false);
+	}
+
+	/**
+	 * Open an existing array for reading
+	 *
+	 * @param file
+	 * @param elementSize
+	 *            the element size, in bytes
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoMappedArray open(File file, int elementSize) throws TurnusException {
+		if (!file.exists()) {
+			throw new TurnusException("The mapped array file " + file + " does not exist");
+		}
+		return new NeoMappedArray(file, file.length() / elementSize, elementSize, true);
+	}
+
+	/**
+	 * Open an array for reading and writing. The file is created if it does
+	 * not exist and it is extended with zeros to the given length.
+	 *
+	 * @param file
+	 * @param length
+	 *            the minimum number of elements
+	 * @param elementSize
+	 *            the element size, in bytes
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoMappedArray openWritable(File file, long length, int elementSize) throws TurnusException {
+		long existing = file.exists() ? file.length() / elementSize : 0;
+		return new NeoMappedArray(file, Math.max(existing, length), elementSize, false);
+	}
+
+	private final File file;
+	private final long length;
+	private final int elementSize;
+	private final boolean readOnly;
+	private final MappedByteBuffer[] segments;
+
+	private NeoMappedArray(File file, long length, int elementSize, boolean readOnly) throws TurnusException {
+		this.file = file;
+		this.length = length;
+		this.elementSize = elementSize;
+		this.readOnly = readOnly;
+
+		long bytes = length * elementSize;
+		segments = new MappedByteBuffer[(int) ((bytes + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		try (RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw")) {
+			if (!readOnly) {
+				raf.setLength(bytes);
+			}
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < segments.length; i++) {
+				long position = (long) i << SEGMENT_SHIFT;
+				long size = Math.min(SEGMENT_SIZE, bytes - position);
+				segments[i] = channel.map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, position, size);
+			}
+		} catch (IOException e) {
+			throw new TurnusException("The mapped array file " + file + " cannot be mapped", e);
+		}
+	}
+
+	/**
+	 * Return the number of elements
+	 *
+	 * @return
+	 */
+	public long length() {
+		return length;
+	}
+
+	public byte getByte(long index) {
+		long position = index * elementSize;
+		return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+	}
+
+	public void setByte(long index, byte value) {
+		long position = index * elementSize;
+		segments[(int) (position >>> SEGMENT_SHIFT)].put((int) (position & SEGMENT_MASK), value);
+	}
+
+	public int getInt(long index) {
+		long position = index * elementSize;
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+	}
+
+	public void setInt(long index, int value) {
+		long position = index * elementSize;
+		segments[(int) (position >>> SEGMENT_SHIFT)].putInt((int) (position & SEGMENT_MASK), value);
+	}
+
+	public long getLong(long index) {
+		long position = index * elementSize;
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	public void setLong(long index, long value) {
+		long position = index * elementSize;
+		segments[(int) (position >>> SEGMENT_SHIFT)].putLong((int) (position & SEGMENT_MASK), value);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Write the modified elements to the file. The mapping itself is released
+	 * when this array is garbage collected.
+	 */
+	@Override
+	public void close() {
+		if (!readOnly) {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,233 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import turnus.common.TurnusException;
+
+/**
+ * The ends of the per-actor (and optionally per-actor/action) step chains.
+ * Each step of an actor is linked to the next step of the same actor with an
+ * {@link NeoConstants.ChainType#ACTOR_NEXT} relationship, and to the next step
+ * of the same action with an {@link NeoConstants.ChainType#ACTION_NEXT}
+ * relationship. This class records the first and the last step of each chain
+ * and is saved next to the database store.
+ *
+ */
+public class NeoStepChains {
+
+	/**
+	 * Load the chain ends from a file
+	 *
+	 * @param file
+	 * @return
+	 * @throws TurnusException
+	 */
+	public static NeoStepChains load(File file) throws TurnusException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			NeoStepChains chains = new NeoStepChains(in.readBoolean());
+			int actors = in.readInt();
+			for (int i = 0; i < actors; i++) {
+				chains.actorEnds.put(in.readUTF(), new long[] { in.readLong(), in.readLong() });
+			}
+			int actions = in.readInt();
+			for (int i = 0; i < actions; i++) {
+				String actor = in.readUTF();
+				String action = in.readUTF();
+				chains.getActionEnds(actor).put(action, new long[] { in.readLong(), in.readLong() });
+			}
+			return chains;
+		} catch (Exception e) {
+			throw new TurnusException("The step chains cannot be loaded from " + file, e);
+		}
+	}
+
+	private final boolean actions;
+	private final Map<String, long[]> actorEnds = new HashMap<>();
+	private final Map<String, Map<String, long[]>> actionEnds = new HashMap<>();
+
+	/**
+	 * Create new empty chains
+	 *
+	 * @param actions
+	 *            if also the per-actor/action chains are recorded
+	 */
+	public NeoStepChains(boolean actions) {
+		this.actions = actions;
+	}
+
+	/**
+	 * Check if the per-actor/action chains are recorded
+	 *
+	 * @return
+	 */
+	public boolean hasActions() {
+		return actions;
+	}
+
+	/**
+	 * Append a step to the chain of its actor
+	 *
+	 * @param actor
+	 * @param id
+	 *            the step id
+	 * @return the id of the previous step of the actor, or <code>-1</code>
+	 */
+	public long appendActor(String actor, long id) {
+		return append(actorEnds, actor, id);
+	}
+
+	/**
+	 * Append a step to the chain of its action
+	 *
+	 * @param actor
+	 * @param action
+	 * @param id
+	 *            the step id
+	 * @return the id of the previous step of the action, or <code>-1</code>
+	 */
+	public long appendAction(String actor, String action, long id) {
+		return append(getActionEnds(actor), action, id);
+	}
+
+	/**
+	 * Return the first step of an actor chain
+	 *
+	 * @param actor
+	 * @return the step id or <code>-1</code> if the actor has no steps
+	 */
+	public long getFirst(String actor) {
+		long[] ends = actorEnds.get(actor);
+		return ends != null ? ends[0] : -1;
+	}
+
+	/**
+	 * Return the last step of an actor chain
+	 *
+	 * @param actor
+	 * @return the step id or <code>-1</code> if the actor has no steps
+	 */
+	public long getLast(String actor) {
+		long[] ends = actorEnds.get(actor);
+		return ends != null ? ends[1] : -1;
+	}
+
+	/**
+	 * Return the first step of an action chain
+	 *
+	 * @param actor
+	 * @param action
+	 * @return the step id or <code>-1</code> if the action has no steps
+	 */
+	public long getFirst(String actor, String action) {
+		Map<String, long[]> ends = actionEnds.get(actor);
+		long[] actionEnds = ends != null ? ends.get(action) : null;
+		return actionEnds != null ? actionEnds[0] : -1;
+	}
+
+	/**
+	 * Return the last step of an action chain
+	 *
+	 * @param actor
+	 * @param action
+	 * @return the step id or <code>-1</code> if the action has no steps
+	 */
+	public long getLast(String actor, String action) {
+		Map<String, long[]> ends = actionEnds.get(actor);
+		long[] actionEnds = ends != null ? ends.get(action) : null;
+		return actionEnds != null ? actionEnds[1] : -1;
+	}
+
+	/**
+	 * Store the chain ends in a file
+	 *
+	 * @param file
+	 * @throws TurnusException
+	 */
+	public void store(File file) throws TurnusException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeBoolean(actions);
+			out.writeInt(actorEnds.size());
+			for (Entry<String, long[]> e : actorEnds.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue()[0]);
+				out.writeLong(e.getValue()[1]);
+			}
+			int size = 0;
+			for (Map<String, long[]> ends : actionEnds.values()) {
+				size += ends.size();
+			}
+			out.writeInt(size);
+			for (Entry<String, Map<String, long[]>> actor : actionEnds.entrySet()) {
+				for (Entry<String, long[]> e : actor.getValue().entrySet()) {
+					out.writeUTF(actor.getKey());
+					out.writeUTF(e.getKey());
+					out.writeLong(e.getValue()[0]);
+					out.writeLong(e.getValue()[1]);
+				}
+			}
+		} catch (Exception e) {
+			throw new TurnusException("The step chains cannot be stored in " + file, e);
+		}
+	}
+
+	private Map<String, long[]> getActionEnds(String actor) {
+		Map<String, long[]> ends = actionEnds.get(actor);
+		if (ends == null) {
+			ends = new HashMap<>();
+			actionEnds.put(actor, ends);
+		}
+		return ends;
+	}
+
+	private static long append(Map<String, long[]> chains, String key, long id) {
+		long[] ends = chains.get(key);
+		if (ends == null) {
+			chains.put(key, new long[] { id, id });
+			return -1;
+		}
+		long previous = ends[1];
+		ends[1] = id;
+		return previous;
+	}
+
+}
@@ -0,0 +1,194 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.neo4j.trace.NeoConstants.STREAM_CHUNK_SIZE;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.LongUnaryOperator;
+
+import org.neo4j.graphdb.Transaction;
+
+import turnus.model.trace.Step;
+
+/**
+ * A {@link Spliterator} over a range of step ids, or over a range of positions
+ * mapped to step ids (e.g. the steps of a level or the topological order). The
+ * range is split in halves
+ * down to chunks of {@link NeoConstants#STREAM_CHUNK_SIZE} steps, so that a
+ * parallel stream processes each chunk on a fork-join worker. The steps can
+ * be filtered by actor and action.
+ *
+ * {@link #forEachRemaining(Consumer)} reads and consumes a whole chunk inside
+ * one read transaction of the worker thread. {@link #tryAdvance(Consumer)},
+ * used by the short-circuiting operations (e.g. <code>findFirst</code> or
+ * <code>limit</code>), opens a transaction for each call: the stream can stop
+ * at any step without closing the spliterator, so a transaction cannot be held
+ * across the calls. In both cases a step is readable only while it is
+ * consumed, a step buffered by the pipeline (e.g. <code>sorted</code>) can
+ * fail later on a property that is not cached. A sequential stream should
+ * then run inside a read transaction of the calling thread, which also makes
+ * the transaction of each call a cheap nested one:
+ *
+ * <pre>
+ * try (Transaction t = trace.beginRead()) {
+ * 	List&lt;Step&gt; steps = trace.getStepsStream(false).sorted(comparator).collect(Collectors.toList());
+ * 	...
+ * }
+ * </pre>
+ *
+ * The operations of a parallel stream must finish with each step inside the
+ * call, e.g. by mapping it to the values they need.
+ *
+ */
+public class NeoStepSpliterator implements Spliterator<Step> {
+
+	private final NeoTrace trace;
+	private final String actor;
+	private final String action;
+	private final LongUnaryOperator ids;
+	private long from;
+	private final long to;
+
+	/**
+	 * Create a new spliterator
+	 *
+	 * @param trace
+	 * @param from
+	 *            the first step id, inclusive
+	 * @param to
+	 *            the last step id, exclusive
+	 * @param actor
+	 *            the actor filter, or <code>null</code>
+	 * @param action
+	 *            the action filter, or <code>null</code>
+	 */
+	NeoStepSpliterator(NeoTrace trace, long from, long to, String actor, String action) {
+		this(trace, null, from, to, actor, action);
+	}
+
+	/**
+	 * Create a new spliterator over a range of positions
+	 *
+	 * @param trace
+	 * @param ids
+	 *            the step id of each position, or <code>null</code> if the
+	 *            positions are the step ids
+	 * @param from
+	 *            the first position, inclusive
+	 * @param to
+	 *            the last position, exclusive
+	 * @param actor
+	 *            the actor filter, or <code>null</code>
+	 * @param action
+	 *            the action filter, or <code>null</code>
+	 */
+	NeoStepSpliterator(NeoTrace trace, LongUnaryOperator ids, long from, long to, String actor, String action) {
+		this.trace = trace;
+		this.ids = ids;
+		this.from = from;
+		this.to = to;
+		this.actor = actor;
+		this.action = action;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Step> consumer) {
+		try (Transaction tx = trace.beginRead()) {
+			while (from < to) {
+				Step step = trace.getStep(id(from++));
+				if (accept(step)) {
+					consumer.accept(step);
+					tx.success();
+					return true;
+				}
+			}
+			tx.success();
+			return false;
+		}
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Step> consumer) {
+		try (Transaction tx = trace.beginRead()) {
+			for (; from < to; from++) {
+				Step step = trace.getStep(id(from));
+				if (accept(step)) {
+					consumer.accept(step);
+				}
+			}
+			// a nested transaction closed without success would roll back
+			// the enclosing one
+			tx.success();
+		}
+	}
+
+	@Override
+	public Spliterator<Step> trySplit() {
+		long size = to - from;
+		if (size <= STREAM_CHUNK_SIZE) {
+			return null;
+		}
+		long middle = from + size / 2;
+		NeoStepSpliterator prefix = new NeoStepSpliterator(trace, ids, from, middle, actor, action);
+		from = middle;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return to - from;
+	}
+
+	@Override
+	public int characteristics() {
+		int characteristics = ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+		if (actor == null) {
+			// the estimate is exact only without filters
+			characteristics |= SIZED | SUBSIZED;
+		}
+		return characteristics;
+	}
+
+	private long id(long position) {
+		return ids == null ? position : ids.applyAsLong(position);
+	}
+
+	private boolean accept(Step step) {
+		if (actor == null) {
+			return true;
+		}
+		return actor.equals(step.getActor()) && (action == null || action.equals(step.getAction()));
+	}
+
+}
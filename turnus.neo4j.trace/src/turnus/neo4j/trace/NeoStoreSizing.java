@@ -0,0 +1,398 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.neo4j.trace.NeoConstants.CONFIG_STORE_ARRAY_BLOCK_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_STORE_CACHE_TYPE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_STORE_MEMORY;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_STORE_PAGE_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_STORE_STRING_BLOCK_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_STORE_ARRAY_BLOCK_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_STORE_CACHE_TYPE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_STORE_MEMORY;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_STORE_PAGE_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_STORE_STRING_BLOCK_SIZE;
+import static turnus.neo4j.trace.NeoConstants.NEO4J_DEFAULT_CONF;
+import static turnus.neo4j.trace.NeoConstants.TP_STORE_CONF;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import turnus.common.configuration.Configuration;
+import turnus.common.io.Logger;
+import turnus.model.trace.util.TraceProperties;
+
+/**
+ * This class computes the mapped memory of each Neo4j store file. The sizes
+ * are estimated from the number of steps and dependencies of the trace, or
+ * read from the store files of an existing trace, and then fitted into the
+ * memory that is available outside the Java heap. The object cache type is
+ * chosen from the heap size. Every value can be overridden by the
+ * configuration.
+ *
+ */
+public class NeoStoreSizing {
+
+	public static final String NODE_STORE = "neostore.nodestore.db.mapped_memory";
+	public static final String RELATIONSHIP_STORE = "neostore.relationshipstore.db.mapped_memory";
+	public static final String PROPERTY_STORE = "neostore.propertystore.db.mapped_memory";
+	public static final String STRING_STORE = "neostore.propertystore.db.strings.mapped_memory";
+	public static final String ARRAY_STORE = "neostore.propertystore.db.arrays.mapped_memory";
+	public static final String PAGE_CACHE = "dbms.pagecache.memory";
+	public static final String CACHE_TYPE = "cache_type";
+	public static final String PAGE_SIZE = "mapped_memory_page_size";
+	public static final String QUERY_CACHE_SIZE = "query_cache_size";
+	/** the block sizes are used only when the store is created */
+	public static final String STRING_BLOCK_SIZE = "string_block_size";
+	public static final String ARRAY_BLOCK_SIZE = "array_block_size";
+
+	private static final String MAPPED_MEMORY_SUFFIX = ".mapped_memory";
+
+	private static final String[] STORES = { NODE_STORE, RELATIONSHIP_STORE, PROPERTY_STORE, STRING_STORE,
+			ARRAY_STORE };
+
+	/** record sizes, in bytes, of the Neo4j 2.2 store format */
+	private static final long NODE_RECORD = 15;
+	private static final long RELATIONSHIP_RECORD = 34;
+	private static final long PROPERTY_RECORD = 41;
+	private static final long DYNAMIC_RECORD = 128;
+
+	/** average number of records written for each step */
+	private static final double STEP_PROPERTY_RECORDS = 3;
+	private static final double STEP_STRING_RECORDS = 0.5;
+	private static final double STEP_ARRAY_RECORDS = 2;
+
+	/** average number of records written for each dependency */
+	private static final double DEPENDENCY_PROPERTY_RECORDS = 3;
+	private static final double COMPACT_DEPENDENCY_PROPERTY_RECORDS = 1;
+	private static final double DEPENDENCY_STRING_RECORDS = 0.1;
+
+	/** the fraction of the free physical memory that can be mapped */
+	private static final double MEMORY_FRACTION = 0.75;
+
+	/** the mapped memory that a store keeps when the sizes are scaled down */
+	private static final long MIN_STORE_MEMORY = 8 * 1024 * 1024;
+
+	/** the growth room of the mapped memory of an existing store */
+	private static final double STORE_HEADROOM = 0.1;
+
+	/** estimated heap size of a cached node or relationship object */
+	private static final long CACHED_OBJECT_SIZE = 200;
+	/** the fraction of the heap that can be used by the object cache */
+	private static final double OBJECT_CACHE_FRACTION = 0.5;
+
+	private static final String DEFAULT_PAGE_SIZE = "4096";
+	private static final String DEFAULT_QUERY_CACHE_SIZE = "10000";
+
+	private static final long MB = 1024 * 1024;
+
+	/**
+	 * Estimate the store sizes of a trace
+	 *
+	 * @param steps
+	 *            the expected number of steps
+	 * @param dependencies
+	 *            the expected number of dependencies
+	 * @param compact
+	 *            if dependencies are stored without the endpoint properties
+	 * @return
+	 */
+	public static NeoStoreSizing fromExpectedSize(long steps, long dependencies, boolean compact) {
+		double dependencyRecords = compact ? COMPACT_DEPENDENCY_PROPERTY_RECORDS : DEPENDENCY_PROPERTY_RECORDS;
+		NeoStoreSizing sizing = new NeoStoreSizing();
+		sizing.sizes.put(NODE_STORE, steps * NODE_RECORD);
+		sizing.sizes.put(RELATIONSHIP_STORE, dependencies * RELATIONSHIP_RECORD);
+		sizing.sizes.put(PROPERTY_STORE,
+				(long) ((steps * STEP_PROPERTY_RECORDS + dependencies * dependencyRecords) * PROPERTY_RECORD));
+		sizing.sizes.put(STRING_STORE,
+				(long) ((steps * STEP_STRING_RECORDS + dependencies * DEPENDENCY_STRING_RECORDS) * DYNAMIC_RECORD));
+		sizing.sizes.put(ARRAY_STORE, (long) (steps * STEP_ARRAY_RECORDS * DYNAMIC_RECORD));
+		sizing.fit(getAvailableMemory());
+		return sizing;
+	}
+
+	/**
+	 * Compute the store sizes of an existing trace from its store files
+	 *
+	 * @param dbPath
+	 *            the database directory
+	 * @return
+	 */
+	public static NeoStoreSizing fromStoreFiles(File dbPath) {
+		NeoStoreSizing sizing = new NeoStoreSizing();
+		for (String store : STORES) {
+			File file = new File(dbPath, store.substring(0, store.length() - MAPPED_MEMORY_SUFFIX.length()));
+			sizing.sizes.put(store, (long) (file.length() * (1 + STORE_HEADROOM)));
+		}
+		sizing.fit(getAvailableMemory());
+
+		// the object cache holds the nodes and relationships proxies
+		long objects = sizing.sizes.get(NODE_STORE) / NODE_RECORD
+				+ sizing.sizes.get(RELATIONSHIP_STORE) / RELATIONSHIP_RECORD;
+		if (objects * CACHED_OBJECT_SIZE <= Runtime.getRuntime().maxMemory() * OBJECT_CACHE_FRACTION) {
+			sizing.cacheType = "soft";
+		}
+		return sizing;
+	}
+
+	/**
+	 * Return the default store sizes
+	 *
+	 * @return
+	 */
+	public static NeoStoreSizing fromDefaults() {
+		NeoStoreSizing sizing = new NeoStoreSizing();
+		for (String store : STORES) {
+			sizing.sizes.put(store, parseSize(NEO4J_DEFAULT_CONF.get(store)));
+		}
+		return sizing;
+	}
+
+	/**
+	 * Load the store sizes saved in the trace properties
+	 *
+	 * @param properties
+	 * @return the store sizes or <code>null</code> if they have not been
+	 *         saved
+	 */
+	public static NeoStoreSizing fromProperties(TraceProperties properties) {
+		NeoStoreSizing sizing = new NeoStoreSizing();
+		for (String store : STORES) {
+			Object value = properties.getAttribute(TP_STORE_CONF.concat(store), null);
+			if (value == null) {
+				return null;
+			}
+			sizing.sizes.put(store, parseSize(value.toString()));
+		}
+		return sizing;
+	}
+
+	/**
+	 * Return the memory that can be mapped by the page cache: a fraction of the
+	 * physical memory that is not reserved to the Java heap
+	 *
+	 * @return
+	 */
+	public static long getAvailableMemory() {
+		long physical = getPhysicalMemory();
+		if (physical <= 0) {
+			// fall back to the default configuration
+			long total = 0;
+			for (String store : STORES) {
+				total += parseSize(NEO4J_DEFAULT_CONF.get(store));
+			}
+			return total;
+		}
+
+		long free = physical - Runtime.getRuntime().maxMemory();
+		if (free <= 0) {
+			Logger.debug("The Java heap covers the physical memory: the stores are mapped with the minimum size");
+		}
+		return (long) (Math.max(free, 0) * MEMORY_FRACTION);
+	}
+
+	/**
+	 * Return the physical memory size. It is read reflectively: the
+	 * platform-specific operating system bean is not an accessible API of
+	 * every JVM.
+	 *
+	 * @return the size or -1 if it cannot be read
+	 */
+	private static long getPhysicalMemory() {
+		try {
+			OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+			Method method = os.getClass().getMethod("getTotalPhysicalMemorySize");
+			method.setAccessible(true);
+			Object value = method.invoke(os);
+			if (value instanceof Long) {
+				return (Long) value;
+			}
+		} catch (Throwable t) {
+			Logger.debug("The physical memory size cannot be read: %s", t.getMessage());
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse a size in bytes, with an optional K, M or G suffix
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static long parseSize(String value) {
+		value = value.trim().toUpperCase();
+		long unit = 1;
+		if (value.endsWith("K")) {
+			unit = 1024;
+		} else if (value.endsWith("M")) {
+			unit = MB;
+		} else if (value.endsWith("G")) {
+			unit = 1024 * MB;
+		}
+		if (unit != 1) {
+			value = value.substring(0, value.length() - 1);
+		}
+		return Long.parseLong(value) * unit;
+	}
+
+	private static String toMegabytes(long bytes) {
+		return ((bytes + MB - 1) / MB) + "M";
+	}
+
+	private final Map<String, Long> sizes = new HashMap<>();
+	private String cacheType = NEO4J_DEFAULT_CONF.get(CACHE_TYPE);
+	private String pageSize = DEFAULT_PAGE_SIZE;
+	private int stringBlockSize;
+	private int arrayBlockSize;
+
+	private NeoStoreSizing() {
+	}
+
+	/**
+	 * Scale down the store sizes, proportionally, if they exceed the given
+	 * memory budget. A store is never scaled below a minimum size, even if the
+	 * budget is exhausted.
+	 *
+	 * @param budget
+	 *            the budget in bytes
+	 */
+	public void fit(long budget) {
+		long total = getTotal();
+		if (total > budget && total > 0) {
+			double scale = (double) budget / total;
+			Logger.debug("The estimated stores (%s) exceed the available memory (%s): scaled by %.2f",
+					toMegabytes(total), toMegabytes(budget), scale);
+			for (String store : STORES) {
+				long size = sizes.get(store);
+				sizes.put(store, Math.max((long) (size * scale), Math.min(size, MIN_STORE_MEMORY)));
+			}
+		}
+	}
+
+	/**
+	 * Apply the values set in the configuration
+	 *
+	 * @param configuration
+	 */
+	public void configure(Configuration configuration) {
+		String memory = configuration.getValue(CONFIG_STORE_MEMORY, DEFAULT_STORE_MEMORY);
+		if (!memory.isEmpty()) {
+			long total = getTotal();
+			long budget = parseSize(memory);
+			Logger.debug("The mapped memory is set to %s by the configuration", toMegabytes(budget));
+			for (String store : STORES) {
+				long size = total > 0 ? (long) ((double) sizes.get(store) * budget / total) : budget / STORES.length;
+				sizes.put(store, size);
+			}
+		}
+		String cacheType = configuration.getValue(CONFIG_STORE_CACHE_TYPE, DEFAULT_STORE_CACHE_TYPE);
+		if (!cacheType.isEmpty()) {
+			this.cacheType = cacheType;
+		}
+		String pageSize = configuration.getValue(CONFIG_STORE_PAGE_SIZE, DEFAULT_STORE_PAGE_SIZE);
+		if (!pageSize.isEmpty()) {
+			this.pageSize = pageSize;
+		}
+		stringBlockSize = configuration.getValue(CONFIG_STORE_STRING_BLOCK_SIZE, DEFAULT_STORE_STRING_BLOCK_SIZE);
+		arrayBlockSize = configuration.getValue(CONFIG_STORE_ARRAY_BLOCK_SIZE, DEFAULT_STORE_ARRAY_BLOCK_SIZE);
+	}
+
+	/**
+	 * Return the total mapped memory in bytes
+	 *
+	 * @return
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (String store : STORES) {
+			total += sizes.get(store);
+		}
+		return total;
+	}
+
+	/**
+	 * Return the Neo4j configuration with these store sizes
+	 *
+	 * @return
+	 */
+	public Map<String, String> toConfiguration() {
+		Map<String, String> conf = new HashMap<>(NEO4J_DEFAULT_CONF);
+		for (String store : STORES) {
+			conf.put(store, toMegabytes(sizes.get(store)));
+		}
+		conf.put(PAGE_CACHE, toMegabytes(getTotal()));
+		conf.put(CACHE_TYPE, cacheType);
+		conf.put(PAGE_SIZE, pageSize);
+		conf.put(QUERY_CACHE_SIZE, DEFAULT_QUERY_CACHE_SIZE);
+		if (stringBlockSize > 0) {
+			conf.put(STRING_BLOCK_SIZE, Integer.toString(stringBlockSize));
+		}
+		if (arrayBlockSize > 0) {
+			conf.put(ARRAY_BLOCK_SIZE, Integer.toString(arrayBlockSize));
+		}
+		return conf;
+	}
+
+	/**
+	 * Save the store sizes in the trace properties
+	 *
+	 * @param properties
+	 */
+	public void store(TraceProperties properties) {
+		for (String store : STORES) {
+			properties.setAttribute(TP_STORE_CONF.concat(store), toMegabytes(sizes.get(store)));
+		}
+	}
+
+	/**
+	 * Log the store sizes
+	 */
+	public void log() {
+		for (String store : STORES) {
+			Logger.debug(" %s = %s", store, toMegabytes(sizes.get(store)));
+		}
+		Logger.debug(" %s = %s", CACHE_TYPE, cacheType);
+		Logger.debug(" %s = %s", PAGE_SIZE, pageSize);
+		if (stringBlockSize > 0) {
+			Logger.debug(" %s = %d", STRING_BLOCK_SIZE, stringBlockSize);
+		}
+		if (arrayBlockSize > 0) {
+			Logger.debug(" %s = %d", ARRAY_BLOCK_SIZE, arrayBlockSize);
+		}
+		Logger.info("Trace database mapped memory: %s, %s object cache", toMegabytes(getTotal()), cacheType);
+	}
+
+}
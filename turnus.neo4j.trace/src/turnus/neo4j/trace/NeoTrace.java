@@ -33,19 +33,33 @@ package turnus.neo4j.trace;
 
 import static turnus.common.TurnusConstants.DB_PATH_NAME;
 import static turnus.common.TurnusConstants.TRACE_PROPERTIES_FILE;
-import static turnus.common.util.StringUtils.createRandomKey;
-import static turnus.neo4j.trace.NeoConstants.CACHE_DEPENDENCIES_MAP;
-import static turnus.neo4j.trace.NeoConstants.CACHE_STEPS_MAP;
+import static turnus.neo4j.trace.NeoConstants.CACHE_DEPENDENCIES_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CACHE_STEPS_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CHAINS_FILE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_COLUMN_STORE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_LEVEL_ORDER;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_READ_ONLY;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_TRANSACTION_OPERATIONS;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_TRANSACTION_SIZE;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_WRITE_BEHIND;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_WRITE_BEHIND_ASYNC;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_WRITE_BEHIND_BATCH_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_COLUMN_STORE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_LEVEL_ORDER;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_READ_ONLY;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_TRANSACTION_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_WRITE_BEHIND;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_WRITE_BEHIND_ASYNC;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+import static turnus.neo4j.trace.NeoConstants.DICTIONARY_FILE;
 import static turnus.neo4j.trace.NeoConstants.DP_DIRECTION;
 import static turnus.neo4j.trace.NeoConstants.DP_GUARD;
 import static turnus.neo4j.trace.NeoConstants.DP_PORT;
 import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTION;
 import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTOR;
-import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ID;
 import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_PORT;
 import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTION;
 import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTOR;
-import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ID;
 import static turnus.neo4j.trace.NeoConstants.DP_TARGET_PORT;
 import static turnus.neo4j.trace.NeoConstants.DP_TOKENS;
 import static turnus.neo4j.trace.NeoConstants.DP_VARIABLE;
@@ -53,46 +67,53 @@ import static turnus.neo4j.trace.NeoConstants.MAX_TRANSACTIONS;
 import static turnus.neo4j.trace.NeoConstants.SP_ACTION;
 import static turnus.neo4j.trace.NeoConstants.SP_ACTOR;
 import static turnus.neo4j.trace.NeoConstants.SP_ACTOR_CLASS;
-import static turnus.neo4j.trace.NeoConstants.SP_ID;
 import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS_COUNTS;
 import static turnus.neo4j.trace.NeoConstants.SP_READ_VARIABLES;
+import static turnus.neo4j.trace.NeoConstants.SP_TOPOLOGICAL_ORDER;
 import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS_COUNTS;
 import static turnus.neo4j.trace.NeoConstants.SP_WRITE_VARIABLES;
+import static turnus.neo4j.trace.NeoConstants.TOPOLOGICAL_INDEX_FILE;
 import static turnus.neo4j.trace.NeoConstants.TURNUS_PROPERTY;
-import static turnus.neo4j.trace.NeoConstants.RelType.FSM;
-import static turnus.neo4j.trace.NeoConstants.RelType.GUARD;
-import static turnus.neo4j.trace.NeoConstants.RelType.MERGED;
-import static turnus.neo4j.trace.NeoConstants.RelType.PORT;
-import static turnus.neo4j.trace.NeoConstants.RelType.SCHEDULER;
-import static turnus.neo4j.trace.NeoConstants.RelType.TOKENS;
-import static turnus.neo4j.trace.NeoConstants.RelType.UNKONW;
-import static turnus.neo4j.trace.NeoConstants.RelType.VARIABLE;
+import static turnus.neo4j.trace.NeoConstants.VALUE_CACHE_SIZE;
+import static turnus.neo4j.trace.NeoValueCache.ALL_ATTRIBUTES;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.primitives.Longs;
 
-import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import turnus.common.TurnusException;
+import turnus.common.TurnusRuntimeException;
+import turnus.common.configuration.Configuration;
 import turnus.common.io.Logger;
 import turnus.common.io.ProgressPrinter;
-import turnus.common.util.MapUtils;
 import turnus.common.util.ObjectUtils;
 import turnus.common.util.Timer;
 import turnus.model.trace.Dependency;
@@ -101,6 +122,7 @@ import turnus.model.trace.Step;
 import turnus.model.trace.Trace;
 import turnus.model.trace.util.StepsIterable;
 import turnus.model.trace.util.TraceProperties;
+import turnus.neo4j.trace.NeoConstants.ChainType;
 import turnus.neo4j.trace.NeoConstants.RelType;
 import turnus.neo4j.trace.NeoConstants.TopoType;
 
@@ -162,8 +184,19 @@ public class NeoTrace implements Trace {
 	private class NeoDependency implements Dependency {
 		private final Relationship edge;
 
+		// immutable structural fields, loaded once
+		private final Kind kind;
+		private final long sourceId;
+		private final long targetId;
+		private final Integer count;
+
 		private NeoDependency(Relationship edge) {
 			this.edge = edge;
+			kind = RelType.getKind(edge.getType());
+			// the relationship endpoints are the source and target steps
+			sourceId = edge.getStartNode().getId();
+			targetId = edge.getEndNode().getId();
+			count = kind == Kind.TOKENS ? (Integer) edge.getProperty(DP_TOKENS, null) : null;
 		}
 
 		public boolean equals(Object obj) {
@@ -175,16 +208,25 @@ public class NeoTrace implements Trace {
 		}
 
 		@Override
-		public <T> T getAttribute(String name) {
-			Object o = edge.getProperty(name);
-			try {
-				if (o != null) {
-					o = deserialize(o);
+		public <T> T getAttribute(final String name) {
+			if (columns != null) {
+				Object value = columns.get(false, edge.getId(), name);
+				if (value != null) {
+					return (T) value;
 				}
-			} catch (Exception e) {
-
 			}
-			return (T) o;
+			syncWrites();
+			return valueCache.get(false, edge.getId(), name, () -> {
+				Object o = edge.getProperty(name);
+				try {
+					if (o != null) {
+						o = deserialize(o);
+					}
+				} catch (Exception e) {
+
+				}
+				return (T) o;
+			});
 		}
 
 		@Override
@@ -195,11 +237,18 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public Iterable<String> getAttributeNames() {
+			syncWrites();
 			Set<String> attributes = new HashSet<>();
 			for (String s : edge.getPropertyKeys()) {
 				if (!s.startsWith(TURNUS_PROPERTY)) {
 					attributes.add(s);
-					noticeTransaction();
+				}
+			}
+			if (columns != null) {
+				for (String s : columns.getNames(false)) {
+					if (columns.has(false, edge.getId(), s)) {
+						attributes.add(s);
+					}
 				}
 			}
 			return attributes;
@@ -207,6 +256,9 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public int getCount() {
+			if (count != null) {
+				return count;
+			}
 			return (int) edge.getProperty(DP_TOKENS);
 		}
 
@@ -217,17 +269,17 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public String getGuard() {
-			return (String) edge.getProperty(DP_GUARD);
+			return format.decodeName(edge.getProperty(DP_GUARD));
 		}
 
 		@Override
 		public Kind getKind() {
-			return RelType.getKind(edge.getType());
+			return kind;
 		}
 
 		@Override
 		public String getPort() {
-			return (String) edge.getProperty(DP_PORT);
+			return format.decodeName(edge.getProperty(DP_PORT));
 		}
 
 		@Override
@@ -237,22 +289,28 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public String getSourceAction() {
-			return (String) edge.getProperty(DP_SOURCE_ACTION);
+			if (format.isCompact()) {
+				return getSource().getAction();
+			}
+			return format.decodeName(edge.getProperty(DP_SOURCE_ACTION));
 		}
 
 		@Override
 		public String getSourceActor() {
-			return (String) edge.getProperty(DP_SOURCE_ACTOR);
+			if (format.isCompact()) {
+				return getSource().getActor();
+			}
+			return format.decodeName(edge.getProperty(DP_SOURCE_ACTOR));
 		}
 
 		@Override
 		public long getSourceId() {
-			return (long) edge.getProperty(DP_SOURCE_ID);
+			return sourceId;
 		}
 
 		@Override
 		public String getSourcePort() {
-			return (String) edge.getProperty(DP_SOURCE_PORT);
+			return format.decodeName(edge.getProperty(DP_SOURCE_PORT));
 		}
 
 		@Override
@@ -262,31 +320,41 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public String getTargetAction() {
-			return (String) edge.getProperty(DP_TARGET_ACTION);
+			if (format.isCompact()) {
+				return getTarget().getAction();
+			}
+			return format.decodeName(edge.getProperty(DP_TARGET_ACTION));
 		}
 
 		@Override
 		public String getTargetActor() {
-			return (String) edge.getProperty(DP_TARGET_ACTOR);
+			if (format.isCompact()) {
+				return getTarget().getActor();
+			}
+			return format.decodeName(edge.getProperty(DP_TARGET_ACTOR));
 		}
 
 		@Override
 		public long getTargetId() {
-			return (long) edge.getProperty(DP_TARGET_ID);
+			return targetId;
 		}
 
 		@Override
 		public String getTargetPort() {
-			return (String) edge.getProperty(DP_TARGET_PORT);
+			return format.decodeName(edge.getProperty(DP_TARGET_PORT));
 		}
 
 		@Override
 		public String getVariable() {
-			return (String) edge.getProperty(DP_VARIABLE);
+			return format.decodeName(edge.getProperty(DP_VARIABLE));
 		}
 
 		@Override
 		public boolean hasAttribute(String name) {
+			if (columns != null && columns.has(false, edge.getId(), name)) {
+				return true;
+			}
+			syncWrites();
 			return edge.hasProperty(name);
 		}
 
@@ -297,37 +365,66 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public boolean removeAttribute(String name) {
+			checkWritable();
 			if (name.startsWith(TURNUS_PROPERTY)) {
 				Logger.debug("Property \"%s\" cannot be removed: structural");
 				return false;
 			}
+			syncWrites();
+			boolean removed = columns != null && columns.remove(false, edge.getId(), name);
 			if (edge.removeProperty(name) != null) {
+				valueCache.invalidate(false, edge.getId(), name);
 				noticeTransaction();
 				return true;
-			} else {
-				return false;
 			}
+			return removed;
 		}
 
 		@Override
 		public void removeAttributes() {
+			checkWritable();
 			for (String s : getAttributeNames()) {
+				if (columns != null) {
+					columns.remove(false, edge.getId(), s);
+				}
 				edge.removeProperty(s);
+				valueCache.invalidate(false, edge.getId(), s);
 				noticeTransaction();
 			}
 		}
 
 		@Override
 		public void setAttribute(String name, Object value) {
+			checkWritable();
 			if (name.startsWith(TURNUS_PROPERTY)) {
 				Logger.debug("Property \"%s\" cannot be modified: structural");
 				return;
 			}
 
+			valueCache.invalidate(false, edge.getId(), name);
+			if (columns != null) {
+				try {
+					if (columnWrites && columns.set(false, edge.getId(), name, value)) {
+						return;
+					}
+				} catch (TurnusException e) {
+					Logger.error("Attribute %s of dependency %d cannot be stored in its column", name, edge.getId());
+					throw new TurnusRuntimeException("The attribute " + name + " cannot be stored in its column", e);
+				}
+				// a property value must not be shadowed by a column value
+				columns.remove(false, edge.getId(), name);
+			}
+
 			try {
 				value = serialize(value);
-				edge.setProperty(name, value);
-				noticeTransaction();
+				if (writes != null) {
+					if (writes.set(false, edge.getId(), name, value)) {
+						flushWrites();
+					}
+				} else {
+					edge.setProperty(name, value);
+					noticeTransaction(NeoWriteBuffer.estimateSize(value));
+				}
 			} catch (Exception e) {
 
 			}
@@ -347,6 +444,10 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public boolean hasAttributes() {
+			if (columns != null && columns.hasAny(false, edge.getId())) {
+				return true;
+			}
+			syncWrites();
 			for (String s : edge.getPropertyKeys()) {
 				if (!s.startsWith(TURNUS_PROPERTY)) {
 					return true;
@@ -357,18 +458,32 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public Map<String, Object> getAttributes() {
-			Map<String, Object> map = new HashMap<>();
-			for (String s : edge.getPropertyKeys()) {
-				if (!s.startsWith(TURNUS_PROPERTY)) {
-					map.put(s, edge.getProperty(s));
+			syncWrites();
+			Map<String, Object> attributes = valueCache.get(false, edge.getId(), ALL_ATTRIBUTES, () -> {
+				Map<String, Object> map = new HashMap<>();
+				for (String s : edge.getPropertyKeys()) {
+					if (!s.startsWith(TURNUS_PROPERTY)) {
+						map.put(s, edge.getProperty(s));
+					}
+				}
+				try {
+					map = deserialize(map);
+				} catch (Exception e) {
+					map = new HashMap<>();
+				}
+				return map;
+			});
+			if (columns != null && columns.hasAny(false, edge.getId())) {
+				// the cached map is shared: the column values are added to a copy
+				attributes = new HashMap<>(attributes);
+				for (String s : columns.getNames(false)) {
+					Object value = columns.get(false, edge.getId(), s);
+					if (value != null) {
+						attributes.put(s, value);
+					}
 				}
 			}
-			try {
-				map = deserialize(map);
-			} catch (Exception e) {
-				map = new HashMap<>();
-			}
-			return map;
+			return attributes;
 		}
 
 	}
@@ -377,8 +492,20 @@ public class NeoTrace implements Trace {
 
 		private final Node node;
 
+		// immutable structural fields, loaded once
+		private final long id;
+		private final String actor;
+		private final String action;
+		private final String actorClass;
+
 		private NeoStep(Node node) {
 			this.node = node;
+			id = node.getId();
+			actor = decodeName(node.getProperty(SP_ACTOR));
+			action = decodeName(node.getProperty(SP_ACTION));
+			// older formats stored the actor class with the action key
+			actorClass = format.getVersion() >= NeoTraceFormat.DICTIONARY
+					? decodeName(node.getProperty(SP_ACTOR_CLASS)) : action;
 		}
 
 		public boolean equals(Object obj) {
@@ -391,30 +518,39 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public String getAction() {
-			return (String) node.getProperty(SP_ACTION);
+			return action;
 		}
 
 		@Override
 		public String getActor() {
-			return (String) node.getProperty(SP_ACTOR);
+			return actor;
 		}
 
 		@Override
 		public String getActorClass() {
-			return (String) node.getProperty(SP_ACTOR_CLASS);
+			return actorClass;
 		}
 
 		@Override
-		public <T> T getAttribute(String name) {
-			Object o = node.getProperty(name);
-			try {
-				if (o != null) {
-					o = deserialize(o);
+		public <T> T getAttribute(final String name) {
+			if (columns != null) {
+				Object value = columns.get(true, node.getId(), name);
+				if (value != null) {
+					return (T) value;
 				}
-			} catch (Exception e) {
-
 			}
-			return (T) o;
+			syncWrites();
+			return valueCache.get(true, node.getId(), name, () -> {
+				Object o = node.getProperty(name);
+				try {
+					if (o != null) {
+						o = deserialize(o);
+					}
+				} catch (Exception e) {
+
+				}
+				return (T) o;
+			});
 		}
 
 		@Override
@@ -425,11 +561,18 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public Iterable<String> getAttributeNames() {
+			syncWrites();
 			Set<String> attributes = new HashSet<>();
 			for (String s : node.getPropertyKeys()) {
 				if (!s.startsWith(TURNUS_PROPERTY)) {
 					attributes.add(s);
-					noticeTransaction();
+				}
+			}
+			if (columns != null) {
+				for (String s : columns.getNames(true)) {
+					if (columns.has(true, node.getId(), s)) {
+						attributes.add(s);
+					}
 				}
 			}
 			return attributes;
@@ -437,41 +580,25 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public long getId() {
-			return (long) node.getProperty(SP_ID);
+			return id;
 		}
 
 		@Override
 		public Iterable<Dependency> getIncomings() {
-			Set<Dependency> incomings = new HashSet<>();
-			for (Relationship e : node.getRelationships(Direction.INCOMING, FSM, GUARD, MERGED, PORT, TOKENS, VARIABLE,
-					SCHEDULER, UNKONW)) {
-				Dependency d = depsMap.get(e);
-				if (d == null) {
-					d = new NeoDependency(e);
-					depsMap.put(e, d);
-				}
-				incomings.add(d);
-			}
-			return incomings;
+			return getDependencies(id, Direction.INCOMING, null);
 		}
 
 		@Override
 		public Iterable<Dependency> getOutgoings() {
-			Set<Dependency> outgoings = new HashSet<>();
-			for (Relationship e : node.getRelationships(Direction.OUTGOING, FSM, GUARD, MERGED, PORT, TOKENS, VARIABLE,
-					SCHEDULER, UNKONW)) {
-				Dependency d = depsMap.get(e);
-				if (d == null) {
-					d = new NeoDependency(e);
-					depsMap.put(e, d);
-				}
-				outgoings.add(d);
-			}
-			return outgoings;
+			return getDependencies(id, Direction.OUTGOING, null);
 		}
 
 		@Override
 		public boolean hasAttribute(String name) {
+			if (columns != null && columns.has(true, node.getId(), name)) {
+				return true;
+			}
+			syncWrites();
 			return node.hasProperty(name);
 		}
 
@@ -482,38 +609,67 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public boolean removeAttribute(String name) {
+			checkWritable();
 			if (name.startsWith(TURNUS_PROPERTY)) {
 				Logger.debug("Property \"%s\" cannot be removed: structural");
 				return false;
 			}
 
+			syncWrites();
+			boolean removed = columns != null && columns.remove(true, node.getId(), name);
 			if (node.removeProperty(name) != null) {
+				valueCache.invalidate(true, node.getId(), name);
 				noticeTransaction();
 				return true;
-			} else {
-				return false;
 			}
+			return removed;
 		}
 
 		@Override
 		public void removeAttributes() {
+			checkWritable();
 			for (String s : getAttributeNames()) {
+				if (columns != null) {
+					columns.remove(true, node.getId(), s);
+				}
 				node.removeProperty(s);
+				valueCache.invalidate(true, node.getId(), s);
 				noticeTransaction();
 			}
 		}
 
 		@Override
 		public void setAttribute(String name, Object value) {
+			checkWritable();
 			if (name.startsWith(TURNUS_PROPERTY)) {
 				Logger.debug("Property \"%s\" cannot be modified: structural");
 				return;
 			}
 
+			valueCache.invalidate(true, node.getId(), name);
+			if (columns != null) {
+				try {
+					if (columnWrites && columns.set(true, node.getId(), name, value)) {
+						return;
+					}
+				} catch (TurnusException e) {
+					Logger.error("Attribute %s of step %d cannot be stored in its column", name, node.getId());
+					throw new TurnusRuntimeException("The attribute " + name + " cannot be stored in its column", e);
+				}
+				// a property value must not be shadowed by a column value
+				columns.remove(true, node.getId(), name);
+			}
+
 			try {
 				value = serialize(value);
-				node.setProperty(name, value);
-				noticeTransaction();
+				if (writes != null) {
+					if (writes.set(true, node.getId(), name, value)) {
+						flushWrites();
+					}
+				} else {
+					node.setProperty(name, value);
+					noticeTransaction(NeoWriteBuffer.estimateSize(value));
+				}
 			} catch (Exception e) {
 
 			}
@@ -532,6 +688,10 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public boolean hasAttributes() {
+			if (columns != null && columns.hasAny(true, node.getId())) {
+				return true;
+			}
+			syncWrites();
 			for (String s : node.getPropertyKeys()) {
 				if (!s.startsWith(TURNUS_PROPERTY)) {
 					return true;
@@ -542,76 +702,125 @@ public class NeoTrace implements Trace {
 
 		@Override
 		public Map<String, Object> getAttributes() {
-			Map<String, Object> map = new HashMap<>();
-			for (String s : node.getPropertyKeys()) {
-				if (!s.startsWith(TURNUS_PROPERTY)) {
-					map.put(s, node.getProperty(s));
+			syncWrites();
+			Map<String, Object> attributes = valueCache.get(true, node.getId(), ALL_ATTRIBUTES, () -> {
+				Map<String, Object> map = new HashMap<>();
+				for (String s : node.getPropertyKeys()) {
+					if (!s.startsWith(TURNUS_PROPERTY)) {
+						map.put(s, node.getProperty(s));
+					}
+				}
+				try {
+					map = deserialize(map);
+				} catch (Exception e) {
+					map = new HashMap<>();
+				}
+				return map;
+			});
+			if (columns != null && columns.hasAny(true, node.getId())) {
+				// the cached map is shared: the column values are added to a copy
+				attributes = new HashMap<>(attributes);
+				for (String s : columns.getNames(true)) {
+					Object value = columns.get(true, node.getId(), s);
+					if (value != null) {
+						attributes.put(s, value);
+					}
 				}
 			}
-			try {
-				map = deserialize(map);
-			} catch (Exception e) {
-				map = new HashMap<>();
-			}
-			return map;
+			return attributes;
 		}
 
 		@Override
 		public Map<String, Integer> getReadTokens() {
-			if (node.hasProperty(SP_READ_TOKENS)) {
-				try {
-					Object map = deserialize(node.getProperty(SP_READ_TOKENS));
-					return (Map<String, Integer>) map;
-				} catch (Exception e) {
-					Logger.error("Read tokens of step %d cannot be deserialized", getId());
+			return valueCache.get(true, id, SP_READ_TOKENS, () -> {
+				if (node.hasProperty(SP_READ_TOKENS)) {
+					try {
+						if (format.getVersion() >= NeoTraceFormat.NATIVE) {
+							return format.decodeTokens(node, SP_READ_TOKENS, SP_READ_TOKENS_COUNTS);
+						}
+						Object map = deserialize(node.getProperty(SP_READ_TOKENS));
+						return (Map<String, Integer>) map;
+					} catch (Exception e) {
+						Logger.error("Read tokens of step %d cannot be deserialized", getId());
+					}
 				}
-			}
-			return new HashMap<>();
+				return new HashMap<>();
+			});
 		}
 
 		@Override
 		public Map<String, Integer> getWriteTokens() {
-			if (node.hasProperty(SP_WRITE_TOKENS)) {
-				try {
-					Object map = deserialize(node.getProperty(SP_WRITE_TOKENS));
-					return (Map<String, Integer>) map;
-				} catch (Exception e) {
-					Logger.error("Write tokens of step %d cannot be deserialized", getId());
+			return valueCache.get(true, id, SP_WRITE_TOKENS, () -> {
+				if (node.hasProperty(SP_WRITE_TOKENS)) {
+					try {
+						if (format.getVersion() >= NeoTraceFormat.NATIVE) {
+							return format.decodeTokens(node, SP_WRITE_TOKENS, SP_WRITE_TOKENS_COUNTS);
+						}
+						Object map = deserialize(node.getProperty(SP_WRITE_TOKENS));
+						return (Map<String, Integer>) map;
+					} catch (Exception e) {
+						Logger.error("Write tokens of step %d cannot be deserialized", getId());
+					}
 				}
-			}
-			return new HashMap<>();
+				return new HashMap<>();
+			});
 		}
 
 		@Override
 		public List<String> getReadVariables() {
-			if (node.hasProperty(SP_READ_VARIABLES)) {
-				try {
-					Object list = deserialize(node.getProperty(SP_READ_VARIABLES));
-					return (List<String>) list;
-				} catch (Exception e) {
-					Logger.error("Read variables of step %d cannot be deserialized", getId());
+			return valueCache.get(true, id, SP_READ_VARIABLES, () -> {
+				if (node.hasProperty(SP_READ_VARIABLES)) {
+					try {
+						if (format.getVersion() >= NeoTraceFormat.NATIVE) {
+							return format.decodeVariables(node, SP_READ_VARIABLES);
+						}
+						Object list = deserialize(node.getProperty(SP_READ_VARIABLES));
+						return (List<String>) list;
+					} catch (Exception e) {
+						Logger.error("Read variables of step %d cannot be deserialized", getId());
+					}
 				}
-			}
-			return new ArrayList<>();
+				return new ArrayList<>();
+			});
 		}
 
 		@Override
 		public List<String> getWriteVariables() {
-			if (node.hasProperty(SP_WRITE_VARIABLES)) {
-				try {
-					Object list = deserialize(node.getProperty(SP_WRITE_VARIABLES));
-					return (List<String>) list;
-				} catch (Exception e) {
-					Logger.error("Write variables of step %d cannot be deserialized", getId());
+			return valueCache.get(true, id, SP_WRITE_VARIABLES, () -> {
+				if (node.hasProperty(SP_WRITE_VARIABLES)) {
+					try {
+						if (format.getVersion() >= NeoTraceFormat.NATIVE) {
+							return format.decodeVariables(node, SP_WRITE_VARIABLES);
+						}
+						Object list = deserialize(node.getProperty(SP_WRITE_VARIABLES));
+						return (List<String>) list;
+					} catch (Exception e) {
+						Logger.error("Write variables of step %d cannot be deserialized", getId());
+					}
 				}
-			}
-			return new ArrayList<>();
+				return new ArrayList<>();
+			});
 		}
 
 	}
 
+	/**
+	 * Decode a structural name. Names are shared by all the steps: dictionary
+	 * names are decoded to the same instance, plain names are interned.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private String decodeName(Object value) {
+		String name = format.decodeName(value);
+		if (format.getDictionary() == null && name != null) {
+			name = name.intern();
+		}
+		return name;
+	}
+
 	private static void registerShutdownHook(final GraphDatabaseService db, final TraceProperties tData,
-			final File dbPath) {
+			final File dbPath, final boolean storeProperties) {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
@@ -622,6 +831,10 @@ public class NeoTrace implements Trace {
 					Logger.debug("neo trace ShutdownHook error: " + e.getMessage());
 				}
 
+				if (!storeProperties) {
+					return;
+				}
+
 				try {
 					File parametersFile = new File(dbPath, TRACE_PROPERTIES_FILE);
 					tData.store(parametersFile);
@@ -634,18 +847,98 @@ public class NeoTrace implements Trace {
 
 	}
 
+	/** estimated heap sizes of the cached steps and dependencies, in bytes */
+	private static final int STEP_ENTRY_SIZE = 160;
+	private static final int DEPENDENCY_ENTRY_SIZE = 160;
+
 	private int cachedTransactions;
-	private Map<Relationship, Dependency> depsMap = MapUtils.createCacheMap(CACHE_DEPENDENCIES_MAP);
+	private long cachedBytes;
+	private int maxTransactionOperations = MAX_TRANSACTIONS;
+	private long maxTransactionBytes = DEFAULT_TRANSACTION_SIZE;
+
+	/**
+	 * The write-behind buffer of the attribute writes, if it is enabled
+	 */
+	private NeoWriteBuffer writes;
+
+	/**
+	 * The columnar attribute store, if it is enabled or if the trace has
+	 * attribute columns
+	 */
+	private NeoColumnStore columns;
+	private boolean columnWrites;
+
+	/** the step id of each position of the topological order */
+	private volatile NeoMappedArray topologicalIndex;
+
+	/** if the topological orders iterate the steps level by level */
+	private boolean levelOrder = DEFAULT_LEVEL_ORDER;
+	/** if the level histogram of the current revision is in the properties */
+	private volatile boolean levelsRecorded;
+	private NeoTraceFormat format;
+	private NeoStepChains chains;
+	private NeoCache<Dependency> depsMap = new NeoCache<>("Dependencies", CACHE_DEPENDENCIES_SIZE,
+			DEPENDENCY_ENTRY_SIZE);
 	private GraphDatabaseService graphDb;
 
 	private TraceProperties tData;
 	private File traceFile;
-	private Map<Long, NeoStep> stepsMap = MapUtils.createCacheMap(CACHE_STEPS_MAP);
+	private NeoCache<NeoStep> stepsMap = new NeoCache<>("Steps", CACHE_STEPS_SIZE, STEP_ENTRY_SIZE);
+
+	/**
+	 * The cache of the decoded property values
+	 */
+	private final NeoValueCache valueCache = new NeoValueCache(VALUE_CACHE_SIZE);
 
 	private Transaction tx;
 
+	/**
+	 * The kernel statement provider, used by the adjacency cursors
+	 */
+	private ThreadToStatementContextBridge bridge;
+
+	/**
+	 * The adjacency cursors of the {@link Step#getIncomings()} and
+	 * {@link Step#getOutgoings()} convenience methods, one for each thread
+	 */
+	private final ThreadLocal<NeoAdjacencyCursor> adjacencyCursor = new ThreadLocal<>();
+
+	/**
+	 * The read-only graph snapshot, if it has been opened
+	 */
+	private volatile NeoGraphSnapshot snapshot;
+
+	/**
+	 * If the trace is read by concurrent threads: the writes are rejected
+	 */
+	private volatile boolean concurrentReads;
+
+	/**
+	 * If the store has been opened read-only: the writes are rejected and the
+	 * trace properties are never stored
+	 */
+	private final boolean readOnly;
+
+	private File dbPath;
+
 	public NeoTrace(File traceFile) throws TurnusException {
-		File dbPath = new File(traceFile.getParentFile(), DB_PATH_NAME);
+		this(traceFile, null);
+	}
+
+	/**
+	 * Open a trace database. If {@link NeoConstants#CONFIG_READ_ONLY} is set
+	 * in the configuration, the store is opened read-only: nothing is written
+	 * in the trace directory, so several processes can read the same trace.
+	 * 
+	 * @param traceFile
+	 * @param configuration
+	 *            the configuration, it can be <code>null</code>
+	 * @throws TurnusException
+	 */
+	public NeoTrace(File traceFile, Configuration configuration) throws TurnusException {
+		readOnly = configuration != null ? configuration.getValue(CONFIG_READ_ONLY, DEFAULT_READ_ONLY)
+				: DEFAULT_READ_ONLY;
+		dbPath = new File(traceFile.getParentFile(), DB_PATH_NAME);
 		if (!dbPath.exists()) {
 			throw new TurnusException("The database path does not exist");
 		}
@@ -654,32 +947,84 @@ public class NeoTrace implements Trace {
 
 		try { // loading and opening the database
 			Timer timer = new Timer();
-			Logger.info("Opening the trace database from \"%s\"", dbPath);
+			Logger.info("Opening the trace database from \"%s\"%s", dbPath, readOnly ? " (read-only)" : "");
 			File parametesFile = new File(dbPath, TRACE_PROPERTIES_FILE);
 			tData = TraceProperties.load(parametesFile);
-			graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(dbPath.getAbsolutePath())
-					.setConfig(GraphDatabaseSettings.cache_type, "weak")
-					.setConfig(GraphDatabaseSettings.mapped_memory_page_size, "4096")
-					.setConfig(GraphDatabaseSettings.string_block_size, "4096")
-					.setConfig(GraphDatabaseSettings.array_block_size, "1")
-					.setConfig(GraphDatabaseSettings.query_cache_size, "10000").newGraphDatabase();
+			int version = NeoTraceFormat.getVersion(tData);
+			NeoDictionary dictionary = null;
+			if (version >= NeoTraceFormat.DICTIONARY) {
+				dictionary = NeoDictionary.load(new File(dbPath, DICTIONARY_FILE));
+			}
+			format = new NeoTraceFormat(version, dictionary, NeoTraceFormat.isCompact(tData));
+			File chainsFile = new File(dbPath, CHAINS_FILE);
+			if (chainsFile.exists()) {
+				chains = NeoStepChains.load(chainsFile);
+			}
+			GraphDatabaseBuilder builder = new GraphDatabaseFactory()
+					.newEmbeddedDatabaseBuilder(dbPath.getAbsolutePath());
+			// the sizes chosen by the builder are reused if they have been
+			// saved, otherwise they are computed from the actual store files;
+			// both are fitted into the memory of this machine
+			NeoStoreSizing sizing = NeoStoreSizing.fromProperties(tData);
+			if (sizing != null) {
+				sizing.fit(NeoStoreSizing.getAvailableMemory());
+			} else {
+				sizing = NeoStoreSizing.fromStoreFiles(dbPath);
+			}
+			if (configuration != null) {
+				sizing.configure(configuration);
+			}
+			sizing.log();
+			builder.setConfig(sizing.toConfiguration());
+			if (readOnly) {
+				builder.setConfig(GraphDatabaseSettings.read_only, "true");
+			}
+			graphDb = builder.newGraphDatabase();
+			// a read transaction in the read-only mode
 			tx = graphDb.beginTx();
+			if (configuration != null && !readOnly) {
+				maxTransactionOperations = configuration.getValue(CONFIG_TRANSACTION_OPERATIONS, MAX_TRANSACTIONS);
+				maxTransactionBytes = configuration.getValue(CONFIG_TRANSACTION_SIZE, DEFAULT_TRANSACTION_SIZE);
+				if (configuration.getValue(CONFIG_WRITE_BEHIND, DEFAULT_WRITE_BEHIND)) {
+					writes = new NeoWriteBuffer(graphDb,
+							configuration.getValue(CONFIG_WRITE_BEHIND_BATCH_SIZE, DEFAULT_WRITE_BEHIND_BATCH_SIZE),
+							configuration.getValue(CONFIG_WRITE_BEHIND_ASYNC, DEFAULT_WRITE_BEHIND_ASYNC));
+				}
+			}
+			bridge = ((GraphDatabaseAPI) graphDb).getDependencyResolver()
+					.resolveDependency(ThreadToStatementContextBridge.class);
+			if (configuration != null) {
+				levelOrder = configuration.getValue(CONFIG_LEVEL_ORDER, DEFAULT_LEVEL_ORDER);
+			}
+			boolean columnStore = configuration != null
+					? configuration.getValue(CONFIG_COLUMN_STORE, DEFAULT_COLUMN_STORE) : DEFAULT_COLUMN_STORE;
+			if (NeoColumnStore.getPath(dbPath).exists() || (columnStore && !readOnly)) {
+				columns = new NeoColumnStore(dbPath, tData.getSteps(), tData.getDependencies(), readOnly);
+				columnWrites = columnStore && !readOnly;
+			}
+			snapshot = NeoGraphSnapshot.open(dbPath, tData, readOnly);
+			if (snapshot != null) {
+				Logger.debug("The graph snapshot is up to date and it is used for the structural queries");
+			}
 			Logger.debug("Opening time %d", timer.getElapsedS());
 			Logger.info("The graph database is now opened and ready");
 		} catch (Exception e) {
 			throw new TurnusException("The database cannot be loaded", e);
 		}
 
-		registerShutdownHook(graphDb, tData, dbPath);
+		registerShutdownHook(graphDb, tData, dbPath, !readOnly);
 	}
 
 	@Override
 	public Dependency addSchedulerDependency(Step source, Step target) {
+		checkWritable();
+		syncWrites();
 		Node srcNode = ((NeoStep) source).node;
 		Node tgtNode = ((NeoStep) target).node;
 
 		Relationship e = srcNode.createRelationshipTo(tgtNode, TopoType.TOPOLOGICAL);
 		tData.addDependency();
+		noticeStructureChange();
 
 		return new NeoDependency(e);
 	}
@@ -692,6 +1037,24 @@ public class NeoTrace implements Trace {
 	@Override
 	public boolean close() {
 		try {
+			stepsMap.log();
+			depsMap.log();
+			valueCache.log();
+			NeoAdjacencyCursor cursor = adjacencyCursor.get();
+			if (cursor != null) {
+				cursor.close();
+			}
+			if (writes != null) {
+				flushWrites();
+				writes.close();
+			}
+			if (columns != null) {
+				columns.close();
+			}
+			if (snapshot != null) {
+				snapshot.close();
+			}
+			closeTopologicalIndex();
 			tx.success();
 			graphDb.shutdown();
 			return true;
@@ -701,19 +1064,6 @@ public class NeoTrace implements Trace {
 		return false;
 	}
 
-	private int getDepsDegree(Node node, Direction dir) {
-		int c = 0;
-		c += node.getDegree(FSM, dir);
-		c += node.getDegree(PORT, dir);
-		c += node.getDegree(GUARD, dir);
-		c += node.getDegree(VARIABLE, dir);
-		c += node.getDegree(TOKENS, dir);
-		c += node.getDegree(SCHEDULER, dir);
-		c += node.getDegree(MERGED, dir);
-
-		return c;
-	}
-
 	@Override
 	public long getSizeD() {
 		return tData.getDependencies();
@@ -741,9 +1091,34 @@ public class NeoTrace implements Trace {
 
 	@Override
 	public Iterable<Step> getSteps(Order order) {
-		if ((order == Order.INCREASING_TO || order == Order.DECREASING_TO) && !isSorted()) {
+		boolean topological = order == Order.INCREASING_TO || order == Order.DECREASING_TO;
+		if (topological && (levelOrder || (!isSorted() && snapshot != null))) {
+			// the order is computed on the snapshot, the store is not modified
+			final PrimitiveIterator.OfLong ids = levelOrder ? getLevels().getLevelOrder(order == Order.INCREASING_TO)
+					: snapshot.getTopologicalOrder(NeoTraceFormat.isIdOrdered(tData), order == Order.INCREASING_TO);
+			return new StepsIterable(new Iterator<Step>() {
+				@Override
+				public boolean hasNext() {
+					return ids.hasNext();
+				}
+
+				@Override
+				public Step next() {
+					return getStep(ids.nextLong());
+				}
+
+				@Override
+				public void remove() {
+				}
+			});
+		}
+		if (topological && !isSorted()) {
 			sort();
 		}
+		if (topological && (NeoTraceFormat.isIdOrdered(tData) || new File(dbPath, TOPOLOGICAL_INDEX_FILE).exists())) {
+			// the positions are indexed: there is no need to walk the chain
+			return getTopologicalSteps(0, tData.getSteps(), order == Order.INCREASING_TO);
+		}
 
 		Iterator<Step> iterator = null;
 
@@ -851,6 +1226,19 @@ public class NeoTrace implements Trace {
 			sort();
 		}
 
+		if (hasChains(order)) {
+			boolean increasing = order == Order.INCREASING_ID || order == Order.INCREASING_TO;
+			long start = increasing ? chains.getFirst(actor) : chains.getLast(actor);
+			return new StepsIterable(
+					getChainIterator(start, tData.getSteps(actor), ChainType.ACTOR_NEXT, increasing));
+		} else if (hasSortableChains(tData.getSteps(actor))) {
+			// a topological order that does not follow the step ids
+			return new StepsIterable(getSortedChainIterator(chains.getFirst(actor), tData.getSteps(actor),
+					ChainType.ACTOR_NEXT, null, order));
+		}
+
+		final Object actorKey = format.lookupName(actor);
+
 		Iterator<Step> iterator = null;
 
 		switch (order) {
@@ -869,7 +1257,7 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Step step = null;
-						if (currentNode.getProperty(SP_ACTOR).equals(actor)) {
+						if (currentNode.getProperty(SP_ACTOR).equals(actorKey)) {
 							step = getStep(currentNode.getId());
 							foundSteps++;
 						}
@@ -901,7 +1289,7 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Step step = null;
-						if (currentNode.getProperty(SP_ACTOR).equals(actor)) {
+						if (currentNode.getProperty(SP_ACTOR).equals(actorKey)) {
 							step = getStep(currentNode.getId());
 							foundSteps++;
 						}
@@ -933,7 +1321,7 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Node node = graphDb.getNodeById(currentStep++);
-						if (node.getProperty(SP_ACTOR).equals(actor)) {
+						if (node.getProperty(SP_ACTOR).equals(actorKey)) {
 							foundSteps++;
 							return getStep(node.getId());
 						}
@@ -960,7 +1348,7 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Node node = graphDb.getNodeById(--currentStep);
-						if (node.getProperty(SP_ACTOR).equals(actor)) {
+						if (node.getProperty(SP_ACTOR).equals(actorKey)) {
 							foundSteps++;
 							return getStep(node.getId());
 						}
@@ -983,6 +1371,25 @@ public class NeoTrace implements Trace {
 			sort();
 		}
 
+		if (hasChains(order) && chains.hasActions()) {
+			boolean increasing = order == Order.INCREASING_ID || order == Order.INCREASING_TO;
+			long start = increasing ? chains.getFirst(actor, action) : chains.getLast(actor, action);
+			return new StepsIterable(
+					getChainIterator(start, tData.getSteps(actor, action), ChainType.ACTION_NEXT, increasing));
+		} else if (chains != null && chains.hasActions() && hasSortableChains(tData.getSteps(actor, action))) {
+			// a topological order that does not follow the step ids
+			return new StepsIterable(getSortedChainIterator(chains.getFirst(actor, action),
+					tData.getSteps(actor, action), ChainType.ACTION_NEXT, null, order));
+		} else if (chains != null && !chains.hasActions()
+				&& (hasChains(order) || hasSortableChains(tData.getSteps(actor)))) {
+			// only the actor chain is walked, its steps are filtered by action
+			return new StepsIterable(getSortedChainIterator(chains.getFirst(actor), tData.getSteps(actor),
+					ChainType.ACTOR_NEXT, format.lookupName(action), order));
+		}
+
+		final Object actorKey = format.lookupName(actor);
+		final Object actionKey = format.lookupName(action);
+
 		Iterator<Step> iterator = null;
 
 		switch (order) {
@@ -1001,8 +1408,8 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Step step = null;
-						if (currentNode.getProperty(SP_ACTOR).equals(actor)
-								&& currentNode.getProperty(SP_ACTION).equals(action)) {
+						if (currentNode.getProperty(SP_ACTOR).equals(actorKey)
+								&& currentNode.getProperty(SP_ACTION).equals(actionKey)) {
 							step = getStep(currentNode.getId());
 							foundSteps++;
 						}
@@ -1034,8 +1441,8 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Step step = null;
-						if (currentNode.getProperty(SP_ACTOR).equals(actor)
-								&& currentNode.getProperty(SP_ACTION).equals(action)) {
+						if (currentNode.getProperty(SP_ACTOR).equals(actorKey)
+								&& currentNode.getProperty(SP_ACTION).equals(actionKey)) {
 							step = getStep(currentNode.getId());
 							foundSteps++;
 						}
@@ -1067,7 +1474,8 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Node node = graphDb.getNodeById(currentStep++);
-						if (node.getProperty(SP_ACTOR).equals(actor) && node.getProperty(SP_ACTION).equals(action)) {
+						if (node.getProperty(SP_ACTOR).equals(actorKey)
+								&& node.getProperty(SP_ACTION).equals(actionKey)) {
 							foundSteps++;
 							return getStep(node.getId());
 						}
@@ -1094,7 +1502,8 @@ public class NeoTrace implements Trace {
 				public Step next() {
 					for (;;) {
 						Node node = graphDb.getNodeById(--currentStep);
-						if (node.getProperty(SP_ACTOR).equals(actor) && node.getProperty(SP_ACTION).equals(action)) {
+						if (node.getProperty(SP_ACTOR).equals(actorKey)
+								&& node.getProperty(SP_ACTION).equals(actionKey)) {
 							foundSteps++;
 							return getStep(node.getId());
 						}
@@ -1111,31 +1520,603 @@ public class NeoTrace implements Trace {
 		return new StepsIterable(iterator);
 	}
 
+	/**
+	 * Check if the actor steps can be iterated along the step chains in the
+	 * given order. Chains follow the step ids, hence they can be used for the
+	 * topological orders only if these are the id order.
+	 * 
+	 * @param order
+	 * @return
+	 */
+	private boolean hasChains(Order order) {
+		if (chains == null) {
+			return false;
+		}
+		return order == Order.INCREASING_ID || order == Order.DECREASING_ID || NeoTraceFormat.isIdOrdered(tData);
+	}
+
+	/**
+	 * Check if the steps of a chain can be sorted by topological position,
+	 * when the topological order does not follow the step ids. The positions
+	 * are indexed if needed, hence the trace must be writable if they are not
+	 * indexed yet.
+	 * 
+	 * @param size
+	 *            the number of steps in the chain
+	 * @return
+	 */
+	private boolean hasSortableChains(long size) {
+		if (chains == null || size > Integer.MAX_VALUE) {
+			return false;
+		}
+		return (!readOnly && !concurrentReads) || new File(dbPath, TOPOLOGICAL_INDEX_FILE).exists();
+	}
+
+	/**
+	 * Return the steps of a chain in the given order. The chain is walked once
+	 * and only its steps are read: in a topological order that does not follow
+	 * the step ids, their positions are collected and sorted.
+	 * 
+	 * @param start
+	 *            the first step of the chain
+	 * @param size
+	 *            the number of steps in the chain
+	 * @param type
+	 *            the chain relationship type
+	 * @param actionKey
+	 *            the encoded action of the returned steps, or
+	 *            <code>null</code> for all the chain steps
+	 * @param order
+	 * @return
+	 */
+	private Iterator<Step> getSortedChainIterator(long start, long size, ChainType type, Object actionKey,
+			Order order) {
+		final boolean topological = (order == Order.INCREASING_TO || order == Order.DECREASING_TO)
+				&& !NeoTraceFormat.isIdOrdered(tData);
+		final NeoMappedArray index = topological ? getTopologicalIndex() : null;
+		LongArrayList values = new LongArrayList();
+		Node node = null;
+		for (long i = 0; i < size; i++) {
+			node = node == null ? graphDb.getNodeById(start)
+					: node.getSingleRelationship(type, Direction.OUTGOING).getEndNode();
+			if (actionKey == null || node.getProperty(SP_ACTION).equals(actionKey)) {
+				values.add(topological ? ((Number) node.getProperty(SP_TOPOLOGICAL_ORDER)).longValue() : node.getId());
+			}
+		}
+		final long[] sorted = values.toLongArray();
+		if (topological) {
+			Arrays.sort(sorted);
+		}
+
+		final boolean increasing = order == Order.INCREASING_ID || order == Order.INCREASING_TO;
+		return new Iterator<Step>() {
+			int position = increasing ? 0 : sorted.length - 1;
+
+			@Override
+			public boolean hasNext() {
+				return increasing ? position < sorted.length : position >= 0;
+			}
+
+			@Override
+			public Step next() {
+				long value = sorted[increasing ? position++ : position--];
+				return getStep(topological ? index.getLong(value) : value);
+			}
+
+			@Override
+			public void remove() {
+			}
+		};
+	}
+
+	/**
+	 * Iterate a step chain
+	 * 
+	 * @param start
+	 *            the first step of the iteration
+	 * @param size
+	 *            the number of steps in the chain
+	 * @param type
+	 *            the chain relationship type
+	 * @param forward
+	 *            if the chain is followed from its first step
+	 * @return
+	 */
+	private Iterator<Step> getChainIterator(final long start, final long size, final ChainType type,
+			final boolean forward) {
+		return new Iterator<Step>() {
+			Node currentNode = null;
+			long foundSteps = 0;
+
+			@Override
+			public boolean hasNext() {
+				return foundSteps < size;
+			}
+
+			@Override
+			public Step next() {
+				if (currentNode == null) {
+					currentNode = graphDb.getNodeById(start);
+				} else if (forward) {
+					currentNode = currentNode.getSingleRelationship(type, Direction.OUTGOING).getEndNode();
+				} else {
+					currentNode = currentNode.getSingleRelationship(type, Direction.INCOMING).getStartNode();
+				}
+				foundSteps++;
+				return getStep(currentNode.getId());
+			}
+
+			@Override
+			public void remove() {
+			}
+		};
+	}
+
+	/**
+	 * Return the column of a step attribute, which can be scanned without
+	 * reading the graph database
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @return the column or <code>null</code> if the attribute is not stored
+	 *         in a column
+	 */
+	public NeoColumn getStepColumn(String name) {
+		return columns != null ? columns.getColumn(true, name) : null;
+	}
+
+	/**
+	 * Return the column of a dependency attribute, which can be scanned
+	 * without reading the graph database
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @return the column or <code>null</code> if the attribute is not stored
+	 *         in a column
+	 */
+	public NeoColumn getDependencyColumn(String name) {
+		return columns != null ? columns.getColumn(false, name) : null;
+	}
+
+	/**
+	 * Return the hit and miss counters of the decoded property values cache
+	 * 
+	 * @return
+	 */
+	public CacheStats getValueCacheStats() {
+		return valueCache.getStats();
+	}
+
+	/**
+	 * Return the hit and miss counters of the steps cache
+	 * 
+	 * @return
+	 */
+	public CacheStats getStepsCacheStats() {
+		return stepsMap.getStats();
+	}
+
+	/**
+	 * Return the hit and miss counters of the dependencies cache
+	 * 
+	 * @return
+	 */
+	public CacheStats getDependenciesCacheStats() {
+		return depsMap.getStats();
+	}
+
+	/**
+	 * Enable or disable the concurrent read mode. In this mode the trace can
+	 * be read by several threads at the same time, each one inside its own
+	 * read transaction (see {@link #beginRead()}), and all the writes
+	 * (attributes, dependencies and sorting) are rejected. The pending writes
+	 * are committed when the mode is enabled.
+	 * 
+	 * @param concurrentReads
+	 */
+	public synchronized void setConcurrentReads(boolean concurrentReads) {
+		if (concurrentReads && !this.concurrentReads) {
+			syncWrites();
+			commitTransaction();
+		}
+		this.concurrentReads = concurrentReads;
+	}
+
+	public boolean isConcurrentReads() {
+		return concurrentReads;
+	}
+
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Open a read transaction for the calling thread. Any thread other than
+	 * the one that opened the trace must read it inside its own transaction:
+	 * 
+	 * <pre>
+	 * try (Transaction t = trace.beginRead()) {
+	 * 	...
+	 * }
+	 * </pre>
+	 * 
+	 * @return
+	 */
+	public Transaction beginRead() {
+		return graphDb.beginTx();
+	}
+
+	/**
+	 * Return a stream of all the steps, in increasing id order. A parallel
+	 * stream splits the step ids in chunks processed by the fork-join workers,
+	 * each one inside its own read transaction: it requires the concurrent
+	 * read mode. A step can be read only inside the stream operations, see
+	 * {@link NeoStepSpliterator} for the steps buffered by the pipeline.
+	 * 
+	 * @param parallel
+	 * @return
+	 */
+	public Stream<Step> getStepsStream(boolean parallel) {
+		return getStepsStream(parallel, null, null);
+	}
+
+	/**
+	 * Return a stream of the steps of an actor, in increasing id order
+	 * 
+	 * @param parallel
+	 * @param actor
+	 * @return
+	 * @see #getStepsStream(boolean)
+	 */
+	public Stream<Step> getStepsStream(boolean parallel, String actor) {
+		return getStepsStream(parallel, actor, null);
+	}
+
+	/**
+	 * Return a stream of the steps of an actor action, in increasing id order
+	 * 
+	 * @param parallel
+	 * @param actor
+	 * @param action
+	 *            the action, or <code>null</code> for all the actor steps
+	 * @return
+	 * @see #getStepsStream(boolean)
+	 */
+	public Stream<Step> getStepsStream(boolean parallel, String actor, String action) {
+		if (parallel && !concurrentReads) {
+			throw new TurnusRuntimeException("A parallel steps stream requires the concurrent read mode");
+		}
+		return StreamSupport.stream(new NeoStepSpliterator(this, 0, tData.getSteps(), actor, action), parallel);
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new TurnusRuntimeException("The trace has been opened read-only and it cannot be modified");
+		}
+		if (concurrentReads) {
+			throw new TurnusRuntimeException("The trace cannot be modified in concurrent read mode");
+		}
+	}
+
+	/**
+	 * Create a new cursor over the dependencies of the steps. The cursor can be
+	 * moved from step to step without any allocation, and must be used only by
+	 * the calling thread.
+	 * 
+	 * @return
+	 */
+	public NeoAdjacencyCursor newAdjacencyCursor() {
+		return new NeoAdjacencyCursor(bridge);
+	}
+
+	/**
+	 * Return the incoming dependencies of a step of the given kinds. Only the
+	 * relationships of these kinds are loaded.
+	 * 
+	 * @param stepId
+	 * @param kinds
+	 * @return
+	 */
+	public Iterable<Dependency> getIncomings(long stepId, Set<Kind> kinds) {
+		return getDependencies(stepId, Direction.INCOMING, kinds);
+	}
+
+	/**
+	 * Return the outgoing dependencies of a step of the given kinds. Only the
+	 * relationships of these kinds are loaded.
+	 * 
+	 * @param stepId
+	 * @param kinds
+	 * @return
+	 */
+	public Iterable<Dependency> getOutgoings(long stepId, Set<Kind> kinds) {
+		return getDependencies(stepId, Direction.OUTGOING, kinds);
+	}
+
+	/**
+	 * Return the number of dependencies of a step of the given kinds, without
+	 * loading them
+	 * 
+	 * @param stepId
+	 * @param direction
+	 *            {@link Direction#INCOMING}, {@link Direction#OUTGOING} or
+	 *            {@link Direction#BOTH}
+	 * @param kinds
+	 *            the dependency kinds, or <code>null</code> for all of them
+	 * @return
+	 */
+	public int getDegree(long stepId, Direction direction, Set<Kind> kinds) {
+		if (snapshot != null) {
+			return snapshot.getDegree(stepId, direction, kinds);
+		}
+		return getAdjacencyCursor().degree(stepId, direction, kinds);
+	}
+
+	private NeoAdjacencyCursor getAdjacencyCursor() {
+		NeoAdjacencyCursor cursor = adjacencyCursor.get();
+		if (cursor == null) {
+			cursor = newAdjacencyCursor();
+			adjacencyCursor.set(cursor);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Return the graph snapshot of this trace, building it if there is no up to
+	 * date one. Once it is opened, the snapshot is used for the structural
+	 * queries: the dependencies of a step, the degrees and the topological
+	 * order.
+	 * 
+	 * @return
+	 * @throws TurnusException
+	 */
+	public synchronized NeoGraphSnapshot getSnapshot() throws TurnusException {
+		if (snapshot == null) {
+			snapshot = NeoGraphSnapshot.open(dbPath, tData, readOnly);
+			if (snapshot == null && readOnly) {
+				throw new TurnusException("There is no up to date graph snapshot and it cannot be built read-only");
+			} else if (snapshot == null) {
+				snapshot = NeoGraphSnapshot.build(dbPath, tData, graphDb, newAdjacencyCursor());
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Return the level of a step: the length of the longest dependency path
+	 * from a step without predecessors. The levels are computed in parallel on
+	 * the graph snapshot, which is built if needed, and they are saved with
+	 * it; the level histogram is stored in the trace properties (see
+	 * {@link NeoTraceFormat#getLevelHistogram(TraceProperties)}).
+	 * 
+	 * @param stepId
+	 * @return
+	 */
+	public int getLevel(long stepId) {
+		return getLevels().getLevel(stepId);
+	}
+
+	/**
+	 * Return the number of levels
+	 * 
+	 * @return
+	 * @see #getLevel(long)
+	 */
+	public int getLevelCount() {
+		return getLevels().getLevelCount();
+	}
+
+	/**
+	 * Return the number of steps of a level
+	 * 
+	 * @param level
+	 * @return
+	 * @see #getLevel(long)
+	 */
+	public long getLevelWidth(int level) {
+		return getLevels().getLevelWidth(level);
+	}
+
+	/**
+	 * Return a stream of the steps of a level, in increasing id order. The
+	 * steps of a level do not depend on each other, so they can be processed
+	 * by a parallel stream; as for {@link #getStepsStream(boolean)} it
+	 * requires the concurrent read mode.
+	 * 
+	 * @param level
+	 * @param parallel
+	 * @return
+	 * @see #getLevel(long)
+	 */
+	public Stream<Step> getLevelStream(int level, boolean parallel) {
+		if (parallel && !concurrentReads) {
+			throw new TurnusRuntimeException("A parallel steps stream requires the concurrent read mode");
+		}
+		long[] ids = getLevels().getLevelSteps(level);
+		return StreamSupport.stream(new NeoStepSpliterator(this, p -> ids[(int) p], 0, ids.length, null, null),
+				parallel);
+	}
+
+	private NeoGraphSnapshot getLevels() {
+		try {
+			NeoGraphSnapshot snapshot = getSnapshot();
+			if (!levelsRecorded) {
+				recordLevels(snapshot);
+			}
+			return snapshot;
+		} catch (TurnusException e) {
+			throw new TurnusRuntimeException("The step levels cannot be computed", e);
+		}
+	}
+
+	private synchronized void recordLevels(NeoGraphSnapshot snapshot) {
+		if (levelsRecorded) {
+			return;
+		}
+		int levels = snapshot.getLevelCount();
+		if (!readOnly) {
+			long maxWidth = 0;
+			long[] histogram = new long[Long.SIZE];
+			int buckets = 0;
+			for (int level = 0; level < levels; level++) {
+				long width = snapshot.getLevelWidth(level);
+				maxWidth = Math.max(maxWidth, width);
+				int bucket = Long.SIZE - 1 - Long.numberOfLeadingZeros(width);
+				histogram[bucket]++;
+				buckets = Math.max(buckets, bucket + 1);
+			}
+			NeoTraceFormat.setLevelHistogram(tData, levels, maxWidth, Arrays.copyOf(histogram, buckets));
+			Logger.debug("%d levels, the largest one has %d steps", levels, maxWidth);
+		}
+		levelsRecorded = true;
+	}
+
+	/**
+	 * Collect the dependencies of a step, reusing the cached ones. The
+	 * relationship ids are read from the snapshot if it is opened.
+	 * 
+	 * @param stepId
+	 * @param direction
+	 * @param kinds
+	 *            the dependency kinds, or <code>null</code> for all of them
+	 * @return
+	 */
+	private List<Dependency> getDependencies(long stepId, Direction direction, Set<Kind> kinds) {
+		List<Dependency> dependencies = new ArrayList<>();
+		if (snapshot != null) {
+			long end = snapshot.getEnd(stepId, direction);
+			for (long i = snapshot.getStart(stepId, direction); i < end; i++) {
+				if (kinds == null || kinds.contains(snapshot.getKind(i, direction))) {
+					dependencies.add(getDependency(snapshot.getRelationshipId(i, direction)));
+				}
+			}
+		} else {
+			NeoAdjacencyCursor cursor = getAdjacencyCursor();
+			if (direction == Direction.INCOMING) {
+				cursor = kinds == null ? cursor.incomings(stepId) : cursor.incomings(stepId, kinds);
+			} else {
+				cursor = kinds == null ? cursor.outgoings(stepId) : cursor.outgoings(stepId, kinds);
+			}
+			while (cursor.next()) {
+				dependencies.add(getDependency(cursor.getRelationshipId()));
+			}
+		}
+		return dependencies;
+	}
+
+	private Dependency getDependency(long relationshipId) {
+		Dependency d = depsMap.get(relationshipId);
+		if (d == null) {
+			d = new NeoDependency(graphDb.getRelationshipById(relationshipId));
+			depsMap.put(relationshipId, d);
+		}
+		return d;
+	}
+
+	/**
+	 * Notice a change of the dependencies: the graph snapshot is no more valid
+	 */
+	private void noticeStructureChange() {
+		NeoTraceFormat.nextRevision(tData);
+		levelsRecorded = false;
+		// deleted relationship ids can be reused
+		depsMap.invalidateAll();
+		if (snapshot != null) {
+			snapshot.close();
+			snapshot = null;
+		}
+	}
+
 	@Override
 	public boolean isSorted() {
 		return tData.isSorted();
 	}
 
 	private void noticeTransaction() {
+		noticeTransaction(0);
+	}
+
+	/**
+	 * Notice a write in the shared transaction, which is committed and closed
+	 * when its size limit is reached
+	 * 
+	 * @param bytes
+	 *            the estimated size of the write
+	 */
+	private void noticeTransaction(long bytes) {
+		if (concurrentReads || readOnly) {
+			// the shared transaction is not rotated by the readers
+			return;
+		}
 		cachedTransactions++;
-		if (cachedTransactions > MAX_TRANSACTIONS) {
-			Logger.debug("storing transactions");
-			tx.success();
-			tx = graphDb.beginTx();
-			cachedTransactions = 0;
+		cachedBytes += bytes;
+		if (cachedTransactions >= maxTransactionOperations || cachedBytes >= maxTransactionBytes) {
+			commitTransaction();
+		}
+	}
+
+	/**
+	 * Commit and close the shared transaction, and open a new one
+	 */
+	private void commitTransaction() {
+		Logger.debug("storing %d transactions", cachedTransactions);
+		tx.success();
+		tx.close();
+		tx = graphDb.beginTx();
+		cachedTransactions = 0;
+		cachedBytes = 0;
+	}
+
+	/**
+	 * Apply the buffered attribute writes. The shared transaction is committed
+	 * before handing them to the committer thread, so that it holds no lock
+	 * the committer could wait for.
+	 */
+	private void flushWrites() {
+		if (writes == null || writes.isEmpty()) {
+			return;
+		}
+		if (writes.isAsync()) {
+			if (cachedTransactions > 0) {
+				commitTransaction();
+			}
+			writes.flush();
+		} else {
+			writes.flush();
+			commitTransaction();
+		}
+	}
+
+	/**
+	 * Apply the buffered attribute writes and wait until they are committed,
+	 * so that they are visible to the following reads
+	 */
+	private void syncWrites() {
+		if (writes != null && !concurrentReads) {
+			flushWrites();
+			writes.await();
 		}
 	}
 
 	@Override
 	public void removeSchedulerDependencies() {
+		checkWritable();
+		syncWrites();
 		for (long i = 0; i < tData.getSteps(); i++) {
 			Node node = graphDb.getNodeById(i);
 			Iterable<Relationship> toBeRemoved = node.getRelationships(Direction.INCOMING, RelType.SCHEDULER);
 			for (Relationship r : toBeRemoved) {
+				if (columns != null) {
+					// the relationship id can be reused by a new dependency
+					for (String name : columns.getNames(false)) {
+						columns.remove(false, r.getId(), name);
+					}
+				}
 				r.delete();
 				tData.removeDependency();
 			}
 		}
+		noticeStructureChange();
 	}
 
 	@Override
@@ -1144,65 +2125,410 @@ public class NeoTrace implements Trace {
 			Logger.info("The trace is already sorted");
 			return;
 		}
+		checkWritable();
+		syncWrites();
+		closeTopologicalIndex();
+		File indexFile = new File(dbPath, TOPOLOGICAL_INDEX_FILE);
+		indexFile.delete();
+
+		long steps = tData.getSteps();
+		for (long i = 0; i < steps; i++) {
+			Relationship r = graphDb.getNodeById(i).getSingleRelationship(TopoType.TOPOLOGICAL, Direction.OUTGOING);
+			if (r != null) {
+				r.delete();
+				noticeTransaction();
+			}
+		}
 
-		Set<Node> sucessors = new HashSet<>();
-		String REMOVED_EDGES = createRandomKey(this.getClass().getName(), "sort");
+		// Kahn's algorithm on primitive in-degree counters: the relationships
+		// are only read, the steps whose predecessors have all been sorted are
+		// kept in a min-heap. The smallest ready id is sorted first, so the
+		// step id order is reproduced whenever it is a topological order
+		ProgressPrinter progress = new ProgressPrinter("Trace topological sorting", steps);
+		NeoAdjacencyCursor cursor = newAdjacencyCursor();
+		File indexTmp = new File(dbPath, TOPOLOGICAL_INDEX_FILE + ".tmp");
+		boolean idOrdered = true;
+		try (Indegrees indegrees = new Indegrees(dbPath, steps);
+				ReadyHeap ready = new ReadyHeap(dbPath, steps);
+				NeoMappedArray index = NeoMappedArray.create(indexTmp, steps, NeoMappedArray.LONG)) {
+			for (cursor.all(); cursor.next();) {
+				indegrees.increment(cursor.getTargetId());
+			}
 
-		ObjectBigArrayBigList<Node> Sn = new ObjectBigArrayBigList<Node>();
-		for (long i = 0; i < tData.getSteps(); i++) {
-			Node n = graphDb.getNodeById(i);
-			if (getDepsDegree(n, Direction.INCOMING) == 0) {
-				Sn.push(n);
+			for (long i = 0; i < steps; i++) {
+				if (indegrees.get(i) == 0) {
+					ready.push(i);
+				}
 			}
 
-			Relationship r = n.getSingleRelationship(TopoType.TOPOLOGICAL, Direction.OUTGOING);
-			if (r != null) {
-				r.delete();
+			long sorted = 0;
+			Node lastNode = null;
+			while (!ready.isEmpty()) {
+				long id = ready.pop();
+				Node node = graphDb.getNodeById(id);
+				if (lastNode == null) {
+					tData.setSourceNode(id);
+				} else {
+					lastNode.createRelationshipTo(node, TopoType.TOPOLOGICAL);
+					noticeTransaction();
+				}
+				lastNode = node;
+				index.setLong(sorted, id);
+				if (idOrdered && id != sorted) {
+					// the positions are not the step ids: they are stored from
+					// now on, starting with the steps sorted so far
+					idOrdered = false;
+					for (long position = 0; position < sorted; position++) {
+						graphDb.getNodeById(position).setProperty(SP_TOPOLOGICAL_ORDER, position);
+						noticeTransaction();
+					}
+				}
+				if (!idOrdered) {
+					node.setProperty(SP_TOPOLOGICAL_ORDER, sorted);
+					noticeTransaction();
+				}
+				sorted++;
+				progress.increment();
+
+				// no write while the cursor is open: the transaction can be
+				// committed only between two steps
+				for (cursor.outgoings(id); cursor.next();) {
+					long target = cursor.getTargetId();
+					if (indegrees.decrement(target) == 0) {
+						ready.push(target);
+					}
+				}
+			}
+			progress.finish();
+
+			if (sorted != steps) {
+				indexTmp.delete();
+				throw new TurnusRuntimeException("The dependency graph is not acyclic: only " + sorted + " of "
+						+ steps + " steps can be sorted");
+			}
+			tData.setSinkNode(lastNode.getId());
+			tData.setSorted();
+			NeoTraceFormat.setIdOrdered(tData, idOrdered);
+		} catch (TurnusException e) {
+			throw new TurnusRuntimeException("The trace cannot be sorted", e);
+		} finally {
+			cursor.close();
+		}
+		commitTransaction();
+		if (idOrdered) {
+			// the positions of an id-ordered trace are the step ids
+			indexTmp.delete();
+		} else if (!indexTmp.renameTo(indexFile)) {
+			throw new TurnusRuntimeException("The topological index cannot be stored in " + indexFile);
+		}
+	}
+
+	/**
+	 * Return the step at a position of the topological order, the trace is
+	 * sorted if needed. The position of each step is stored by
+	 * {@link #sort()} in its {@link NeoConstants#SP_TOPOLOGICAL_ORDER}
+	 * property, and the step id of each position in a dense index file; none
+	 * of them is stored if the order is the step id order.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	public Step getStepAt(long position) {
+		NeoMappedArray index = getTopologicalIndex();
+		return getStep(index == null ? position : index.getLong(position));
+	}
+
+	/**
+	 * Return the position of a step in the topological order, the trace is
+	 * sorted if needed
+	 * 
+	 * @param step
+	 * @return
+	 * @see #getStepAt(long)
+	 */
+	public long getTopologicalPosition(Step step) {
+		NeoMappedArray index = getTopologicalIndex();
+		if (index == null) {
+			return step.getId();
+		}
+		return ((Number) ((NeoStep) step).node.getProperty(SP_TOPOLOGICAL_ORDER)).longValue();
+	}
+
+	/**
+	 * Return the steps of a range of positions of the topological order, the
+	 * trace is sorted if needed
+	 * 
+	 * @param from
+	 *            the first position, inclusive
+	 * @param to
+	 *            the last position, exclusive
+	 * @return
+	 * @see #getStepAt(long)
+	 */
+	public Iterable<Step> getSteps(long from, long to) {
+		return getTopologicalSteps(from, to, true);
+	}
+
+	private Iterable<Step> getTopologicalSteps(final long from, final long to, final boolean increasing) {
+		final NeoMappedArray index = getTopologicalIndex();
+		return new StepsIterable(new Iterator<Step>() {
+			long position = increasing ? from : to - 1;
+
+			@Override
+			public boolean hasNext() {
+				return increasing ? position < to : position >= from;
 			}
 
+			@Override
+			public Step next() {
+				long p = increasing ? position++ : position--;
+				return getStep(index == null ? p : index.getLong(p));
+			}
+
+			@Override
+			public void remove() {
+			}
+		});
+	}
+
+	/**
+	 * Return a stream of the steps of a range of positions of the topological
+	 * order, the trace is sorted if needed. A parallel stream splits the
+	 * range, as for {@link #getStepsStream(boolean)} it requires the
+	 * concurrent read mode.
+	 * 
+	 * @param from
+	 *            the first position, inclusive
+	 * @param to
+	 *            the last position, exclusive
+	 * @param parallel
+	 * @return
+	 * @see #getStepAt(long)
+	 */
+	public Stream<Step> getTopologicalStream(long from, long to, boolean parallel) {
+		if (parallel && !concurrentReads) {
+			throw new TurnusRuntimeException("A parallel steps stream requires the concurrent read mode");
+		}
+		NeoMappedArray index = getTopologicalIndex();
+		return StreamSupport.stream(
+				new NeoStepSpliterator(this, index == null ? null : index::getLong, from, to, null, null), parallel);
+	}
+
+	/**
+	 * Return the topological index, the trace is sorted if needed. A trace
+	 * sorted without the index is indexed walking its topological chain once.
+	 * 
+	 * @return the index or <code>null</code> if the positions are the step ids
+	 */
+	private NeoMappedArray getTopologicalIndex() {
+		NeoMappedArray index = topologicalIndex;
+		return index != null ? index : openTopologicalIndex();
+	}
+
+	private synchronized NeoMappedArray openTopologicalIndex() {
+		if (!isSorted()) {
+			sort();
+		}
+		if (NeoTraceFormat.isIdOrdered(tData)) {
+			return null;
+		}
+		if (topologicalIndex != null) {
+			return topologicalIndex;
 		}
 
-		ProgressPrinter progress = new ProgressPrinter("Trace topological sorting", getSizeS());
-		Node lastNode = null;
-		while (!Sn.isEmpty()) {
-			Node n = Sn.pop();
-			if (lastNode == null) {
-				tData.setSourceNode(n.getId());
+		try {
+			File indexFile = new File(dbPath, TOPOLOGICAL_INDEX_FILE);
+			if (!indexFile.exists()) {
+				checkWritable();
+				long steps = tData.getSteps();
+				File indexTmp = new File(dbPath, TOPOLOGICAL_INDEX_FILE + ".tmp");
+				try (NeoMappedArray index = NeoMappedArray.create(indexTmp, steps, NeoMappedArray.LONG)) {
+					Node node = graphDb.getNodeById(tData.getSourceNode());
+					for (long position = 0; position < steps; position++) {
+						if (position > 0) {
+							node = node.getSingleRelationship(TopoType.TOPOLOGICAL, Direction.OUTGOING).getEndNode();
+						}
+						node.setProperty(SP_TOPOLOGICAL_ORDER, position);
+						noticeTransaction();
+						index.setLong(position, node.getId());
+					}
+				}
+				commitTransaction();
+				if (!indexTmp.renameTo(indexFile)) {
+					throw new TurnusException("The topological index cannot be stored in " + indexFile);
+				}
+			}
+			topologicalIndex = NeoMappedArray.open(indexFile, NeoMappedArray.LONG);
+			return topologicalIndex;
+		} catch (TurnusException e) {
+			throw new TurnusRuntimeException("The topological index cannot be opened", e);
+		}
+	}
+
+	private synchronized void closeTopologicalIndex() {
+		if (topologicalIndex != null) {
+			topologicalIndex.close();
+			topologicalIndex = null;
+		}
+	}
+
+	/**
+	 * The in-degree counters of the steps used by {@link NeoTrace#sort()}: a
+	 * Java array when it can hold all the steps, otherwise a memory-mapped
+	 * scratch file in the database directory
+	 */
+	private static class Indegrees implements AutoCloseable {
+
+		private final int[] counters;
+		private final NeoMappedArray mappedCounters;
+
+		private Indegrees(File dbPath, long steps) throws TurnusException {
+			if (steps <= Integer.MAX_VALUE) {
+				counters = new int[(int) steps];
+				mappedCounters = null;
 			} else {
-				lastNode.createRelationshipTo(n, TopoType.TOPOLOGICAL);
+				counters = null;
+				try {
+					File file = File.createTempFile("turnus.indegree", ".tmp", dbPath);
+					mappedCounters = NeoMappedArray.create(file, steps, NeoMappedArray.INT);
+				} catch (IOException e) {
+					throw new TurnusException("The in-degree counters cannot be created", e);
+				}
 			}
-			lastNode = n;
+		}
 
-			// orderedSteps.push(s);
-			// System.out.println("sorted: " + s);
-			progress.increment();
+		private int get(long step) {
+			return counters != null ? counters[(int) step] : mappedCounters.getInt(step);
+		}
 
-			sucessors.clear();
-			for (Relationship outgoing : n.getRelationships(Direction.OUTGOING, FSM, GUARD, MERGED, PORT, TOKENS,
-					VARIABLE, SCHEDULER, UNKONW)) {
-				outgoing.setProperty(REMOVED_EDGES, true);
-				sucessors.add(outgoing.getEndNode());
+		private void increment(long step) {
+			if (counters != null) {
+				counters[(int) step]++;
+			} else {
+				mappedCounters.setInt(step, mappedCounters.getInt(step) + 1);
 			}
+		}
 
-			// check if all edges of the sucessors are sorted
-			for (Node sucessor : sucessors) {
-				boolean insertInS = true;
-				for (Relationship in : sucessor.getRelationships(Direction.INCOMING, FSM, GUARD, MERGED, PORT, TOKENS,
-						VARIABLE, SCHEDULER, UNKONW)) {
-					if (!in.hasProperty(REMOVED_EDGES)) {
-						insertInS = false;
+		private int decrement(long step) {
+			if (counters != null) {
+				return --counters[(int) step];
+			}
+			int value = mappedCounters.getInt(step) - 1;
+			mappedCounters.setInt(step, value);
+			return value;
+		}
+
+		@Override
+		public void close() {
+			if (mappedCounters != null) {
+				// a scratch file: there is nothing to write back
+				mappedCounters.getFile().delete();
+			}
+		}
+
+	}
+
+	/**
+	 * The min-heap of the steps ready to be sorted by {@link NeoTrace#sort()}:
+	 * a Java list when it can hold all the steps, otherwise a memory-mapped
+	 * scratch file in the database directory. It never holds more than all the
+	 * steps.
+	 */
+	private static class ReadyHeap implements AutoCloseable {
+
+		private final LongArrayList list;
+		private final NeoMappedArray mappedHeap;
+		private long size;
+
+		private ReadyHeap(File dbPath, long steps) throws TurnusException {
+			if (steps <= Integer.MAX_VALUE) {
+				list = new LongArrayList();
+				mappedHeap = null;
+			} else {
+				list = null;
+				try {
+					File file = File.createTempFile("turnus.ready", ".tmp", dbPath);
+					mappedHeap = NeoMappedArray.create(file, steps, NeoMappedArray.LONG);
+				} catch (IOException e) {
+					throw new TurnusException("The ready steps heap cannot be created", e);
+				}
+			}
+		}
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private void push(long step) {
+			if (list != null) {
+				list.add(step);
+			}
+			// sift up
+			long position = size++;
+			while (position > 0) {
+				long parent = (position - 1) / 2;
+				long parentStep = get(parent);
+				if (parentStep <= step) {
+					break;
+				}
+				set(position, parentStep);
+				position = parent;
+			}
+			set(position, step);
+		}
+
+		/**
+		 * Remove the smallest step
+		 */
+		private long pop() {
+			long first = get(0);
+			long step = get(--size);
+			if (list != null) {
+				list.removeLong((int) size);
+			}
+			if (size > 0) {
+				// sift down the last step from the root
+				long position = 0;
+				for (;;) {
+					long child = 2 * position + 1;
+					if (child >= size) {
 						break;
 					}
+					long childStep = get(child);
+					if (child + 1 < size && get(child + 1) < childStep) {
+						child++;
+						childStep = get(child);
+					}
+					if (step <= childStep) {
+						break;
+					}
+					set(position, childStep);
+					position = child;
 				}
-				if (insertInS) {
-					Sn.push(sucessor);
-				}
+				set(position, step);
+			}
+			return first;
+		}
+
+		private long get(long position) {
+			return list != null ? list.getLong((int) position) : mappedHeap.getLong(position);
+		}
+
+		private void set(long position, long step) {
+			if (list != null) {
+				list.set((int) position, step);
+			} else {
+				mappedHeap.setLong(position, step);
 			}
 		}
 
-		tData.setSinkNode(lastNode.getId());
-		tData.setSorted();
-		progress.finish();
+		@Override
+		public void close() {
+			if (mappedHeap != null) {
+				// a scratch file: there is nothing to write back
+				mappedHeap.getFile().delete();
+			}
+		}
 
 	}
 
@@ -31,275 +31,140 @@
  */
 package turnus.neo4j.trace;
 
-import static turnus.common.TurnusConstants.DB_PATH_NAME;
-import static turnus.common.TurnusConstants.TRACE_PROPERTIES_FILE;
-import static turnus.neo4j.trace.NeoConstants.DP_DIRECTION;
-import static turnus.neo4j.trace.NeoConstants.DP_GUARD;
-import static turnus.neo4j.trace.NeoConstants.DP_PORT;
-import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTION;
-import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTOR;
-import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ID;
-import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_PORT;
-import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTION;
-import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTOR;
-import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ID;
-import static turnus.neo4j.trace.NeoConstants.DP_TARGET_PORT;
-import static turnus.neo4j.trace.NeoConstants.DP_TOKENS;
-import static turnus.neo4j.trace.NeoConstants.DP_VARIABLE;
-import static turnus.neo4j.trace.NeoConstants.LB_STEP;
-import static turnus.neo4j.trace.NeoConstants.NEO4J_DEFAULT_CONF;
-import static turnus.neo4j.trace.NeoConstants.SP_ACTION;
-import static turnus.neo4j.trace.NeoConstants.SP_ACTOR;
-import static turnus.neo4j.trace.NeoConstants.SP_ACTOR_CLASS;
-import static turnus.neo4j.trace.NeoConstants.SP_ID;
-import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS;
-import static turnus.neo4j.trace.NeoConstants.SP_READ_VARIABLES;
-import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS;
-import static turnus.neo4j.trace.NeoConstants.SP_WRITE_VARIABLES;
 import static turnus.neo4j.trace.NeoConstants.RelType.getRelType;
-import static turnus.neo4j.trace.NeoTrace.serialize;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 
-import org.neo4j.graphdb.DynamicLabel;
-import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.unsafe.batchinsert.BatchInserter;
 import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
 
-import turnus.common.TurnusRuntimeException;
-import turnus.common.configuration.Configuration;
 import turnus.common.io.Logger;
-import turnus.common.util.Timer;
-import turnus.model.trace.Dependency.Direction;
 import turnus.model.trace.Dependency.Kind;
-import turnus.model.trace.Trace;
-import turnus.model.trace.TraceBuilder;
-import turnus.model.trace.util.TraceProperties;
 
 /**
  * 
  * @author Simone Casale Brunet
  *
  */
-public class NeoTraceBuilder implements TraceBuilder {
-
-	private File traceFile;
-	private File dbPath;
+public class NeoTraceBuilder extends AbstractNeoTraceBuilder {
 
 	private BatchInserter ndb;
-	private Label stepLabel;
-	private TraceProperties ntd;
+	private Thread shutdownHook;
+
+	/** if steps and relationships written after the resumed checkpoint can exist */
+	private boolean recoverSteps;
+	private boolean recoverRelationships;
+	private final Set<Long> recoveredRelationships = new HashSet<>();
+	/** the highest node and relationship ids written in the store */
+	private long highNodeId = -1;
+	private long highRelationshipId = -1;
 
 	public NeoTraceBuilder(File traceFile) {
-		this.traceFile = traceFile;
-		dbPath = new File(traceFile.getParentFile(), DB_PATH_NAME);
+		super(traceFile);
 	}
 
 	@Override
-	public Trace build() {
-		Timer timer = new Timer();
-		Logger.info("Finalising trace building on the database");
-		ndb.shutdown();
-		Logger.debug("Trace database finalized in %ds", timer.getElapsedS());
-		try {
-			File dbPath = new File(ndb.getStoreDir());
-			File parametesFile = new File(dbPath, TRACE_PROPERTIES_FILE);
-			ntd.store(parametesFile);
-			return new NeoTrace(traceFile);
-		} catch (Exception e) {
-			throw new TurnusRuntimeException(
-					"The trace database cannot be opened after its creation from " + ndb.getStoreDir());
+	protected void open() {
+		Logger.info("Configuring the trace database in \"%s\"", dbPath);
+		openInserter();
+		if (resumed == null) {
+			createIndexes(ndb);
+		} else {
+			// the store may contain records written after the checkpoint,
+			// above its high ids: they are overwritten until the first missing
+			// one
+			recoverSteps = true;
+			recoverRelationships = true;
+			highNodeId = resumed.getHighNodeId();
+			highRelationshipId = resumed.getHighRelationshipId();
 		}
+		Logger.info("db created in \"%s\"", dbPath);
 	}
 
-	private static void registerShutdownHook(final BatchInserter graphDb) {
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				try {
-					graphDb.shutdown();
-					Logger.debug("neo trace batch inserter has been shutdown");
-				} catch (Exception e) {
-					Logger.debug("neo trace batch inserter ShutdownHook error: " + e.getMessage());
-				}
-			}
-		});
-	}
-
-	private void addDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, Kind kind, Direction direction, String guard, String variable,
-			String port, String sourcePort, String targetPort, int count, Map<String, Object> attributes) {
-
-		Map<String, Object> properties = new HashMap<>();
-		properties.put(DP_SOURCE_ID, sourceId);
-		properties.put(DP_SOURCE_ACTOR, sourceActor);
-		properties.put(DP_SOURCE_ACTION, sourceAction);
-		properties.put(DP_TARGET_ID, targetId);
-		properties.put(DP_TARGET_ACTOR, targetActor);
-		properties.put(DP_TARGET_ACTION, targetAction);
-
-		switch (kind) {
-		case GUARD:
-			properties.put(DP_GUARD, guard);
-			properties.put(DP_DIRECTION, direction.literal());
-			break;
-		case PORT:
-			properties.put(DP_PORT, port);
-			properties.put(DP_DIRECTION, direction.literal());
-			break;
-		case VARIABLE:
-			properties.put(DP_VARIABLE, variable);
-			properties.put(DP_DIRECTION, direction.literal());
-			break;
-		case TOKENS:
-			properties.put(DP_SOURCE_PORT, sourcePort);
-			properties.put(DP_TARGET_PORT, targetPort);
-			properties.put(DP_TOKENS, count);
-			break;
-		default:
-			break;
-		}
-
-		if (attributes != null && !attributes.isEmpty()) {
-			if (attributes != null && !attributes.isEmpty()) {
-				Map<String, Object> serialized = serialize(attributes);
-				for (Entry<String, Object> e : serialized.entrySet()) {
-					properties.put(e.getKey(), e.getValue());
-				}
+	@Override
+	protected void writeStep(long id, Map<String, Object> properties) {
+		highNodeId = Math.max(highNodeId, id);
+		if (recoverSteps) {
+			if (id > resumed.getHighNodeId() && ndb.nodeExists(id)) {
+				ndb.setNodeProperties(id, properties);
+				ndb.setNodeLabels(id, STEP_LABEL);
+				return;
 			}
+			recoverSteps = false;
 		}
-
-		ndb.createRelationship(sourceId, targetId, getRelType(kind), properties);
-		ntd.addDependency();
+		ndb.createNode(id, properties, STEP_LABEL);
 	}
 
 	@Override
-	public void setExpectedSize(long expectedS, long expectedD) {
+	protected void writeDependency(long sourceId, long targetId, Kind kind, Map<String, Object> properties) {
+		writeRelationship(sourceId, targetId, getRelType(kind), properties);
 	}
 
 	@Override
-	public void setConfiguration(Configuration configuration) {
-		Logger.info("Configuring the trace database in \"%s\"", dbPath);
-		ndb = BatchInserters.inserter(dbPath.getAbsolutePath(), NEO4J_DEFAULT_CONF);
-		stepLabel = DynamicLabel.label(LB_STEP);
-		ndb.createDeferredSchemaIndex(stepLabel).on(SP_ACTOR).create();
-		ndb.createDeferredSchemaIndex(stepLabel).on(SP_ACTION).create();
-		registerShutdownHook(ndb);
-		ntd = new TraceProperties();
-		Logger.info("db created in \"%s\"", dbPath);
+	protected void writeLink(long sourceId, long targetId, RelationshipType type) {
+		writeRelationship(sourceId, targetId, type, Collections.<String, Object> emptyMap());
 	}
 
-	@Override
-	public void addAttributes(Map<String, Object> attributes) {
-		for (Entry<String, Object> e : attributes.entrySet()) {
-			ntd.setAttribute(e.getKey(), e.getValue());
+	private void writeRelationship(long sourceId, long targetId, RelationshipType type,
+			Map<String, Object> properties) {
+		if (recoverRelationships) {
+			// a relationship covered by the checkpoint is never overwritten,
+			// even if it has the same end nodes and type
+			long highId = resumed.getHighRelationshipId();
+			for (BatchRelationship r : ndb.getRelationships(sourceId)) {
+				if (r.getId() > highId && r.getStartNode() == sourceId && r.getEndNode() == targetId
+						&& r.getType().name().equals(type.name()) && recoveredRelationships.add(r.getId())) {
+					ndb.setRelationshipProperties(r.getId(), properties);
+					highRelationshipId = Math.max(highRelationshipId, r.getId());
+					return;
+				}
+			}
+			recoverRelationships = false;
+			recoveredRelationships.clear();
 		}
-
+		long id = ndb.createRelationship(sourceId, targetId, type, properties);
+		highRelationshipId = Math.max(highRelationshipId, id);
 	}
 
 	@Override
-	public void addFsmDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, Map<String, Object> attributes) {
-		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.FSM, null, null,
-				null, null, null, null, 0, attributes);
-
+	protected boolean flush() {
+		// the batch inserter writes its stores only when it is shut down: the
+		// reopening costs as much as the store size (see
+		// CONFIG_CHECKPOINT_INTERVAL)
+		closeInserter();
+		openInserter();
+		return true;
 	}
 
 	@Override
-	public void addGuardDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, String guard, Direction direction,
-			Map<String, Object> attributes) {
-		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.GUARD, direction,
-				guard, null, null, null, null, 0, attributes);
-
+	protected long getHighNodeId() {
+		return highNodeId;
 	}
 
 	@Override
-	public void addPortDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, String port, Direction direction, Map<String, Object> attributes) {
-		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.PORT, direction,
-				null, null, port, null, null, 0, attributes);
-
+	protected long getHighRelationshipId() {
+		return highRelationshipId;
 	}
 
 	@Override
-	public void addStep(long id, String actor, String action, String actorClass, Map<String, Integer> readTokens,
-			Map<String, Integer> writeTokens, List<String> readVariables, List<String> writeVariables,
-			Map<String, Object> attributes) {
-		Map<String, Object> properties = new HashMap<>();
-		properties.put(SP_ACTOR, actor);
-		properties.put(SP_ACTION, action);
-		properties.put(SP_ACTOR_CLASS, actorClass);
-		properties.put(SP_ID, id);
-
-		if (!readTokens.isEmpty()) {
-			try {
-				Object serialized = serialize(readTokens);
-				properties.put(SP_READ_TOKENS, serialized);
-			} catch (Exception e) {
-				Logger.error("Read tokens of step %d cannot be serialized", id);
-			}
-		}
-		
-		if (!writeTokens.isEmpty()) {
-			try {
-				Object serialized = serialize(writeTokens);
-				properties.put(SP_WRITE_TOKENS, serialized);
-			} catch (Exception e) {
-				Logger.error("Write tokens of step %d cannot be serialized", id);
-			}
-		}
-		
-		if (!readVariables.isEmpty()) {
-			try {
-				Object serialized = serialize(readVariables);
-				properties.put(SP_READ_VARIABLES, serialized);
-			} catch (Exception e) {
-				Logger.error("Read variables of step %d cannot be serialized", id);
-			}
-		}
-		
-		if (!writeVariables.isEmpty()) {
-			try {
-				Object serialized = serialize(writeVariables);
-				properties.put(SP_WRITE_VARIABLES, serialized);
-			} catch (Exception e) {
-				Logger.error("Write variables of step %d cannot be serialized", id);
-			}
-		}
-
-		if (attributes != null && !attributes.isEmpty()) {
-			Map<String, Object> serialized = serialize(attributes);
-			for (Entry<String, Object> e : serialized.entrySet()) {
-				properties.put(e.getKey(), e.getValue());
-			}
-		}
-
-		ndb.createNode(id, properties, stepLabel);
-
-		ntd.addStep(actor, action);
+	protected void close() {
+		closeInserter();
 	}
 
-	@Override
-	public void addTokensDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, String sourcePort, String targetPort, int tokens,
-			Map<String, Object> attributes) {
-		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.TOKENS, null, null,
-				null, null, sourcePort, targetPort, tokens, attributes);
-
+	private void openInserter() {
+		ndb = BatchInserters.inserter(dbPath.getAbsolutePath(), getStoreConfiguration());
+		shutdownHook = registerShutdownHook(ndb);
 	}
 
-	@Override
-	public void addVariableDependency(long sourceId, String sourceActor, String sourceAction, long targetId,
-			String targetActor, String targetAction, String variable, Direction direction,
-			Map<String, Object> attributes) {
-		addDependency(sourceId, sourceActor, sourceAction, targetId, targetActor, targetAction, Kind.VARIABLE,
-				direction, null, variable, null, null, null, 0, attributes);
-
+	private void closeInserter() {
+		ndb.shutdown();
+		Runtime.getRuntime().removeShutdownHook(shutdownHook);
 	}
 
 }
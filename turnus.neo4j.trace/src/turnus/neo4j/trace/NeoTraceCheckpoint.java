@@ -0,0 +1,300 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.neo4j.trace.NeoConstants.CHECKPOINT_FILE;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import turnus.common.TurnusException;
+import turnus.common.io.Logger;
+import turnus.model.trace.util.TraceProperties;
+
+/**
+ * A durable checkpoint of a trace database under construction. It records how
+ * many parsed records (steps and dependencies) have been fully written in the
+ * store, the last written step and dependency, the highest node and
+ * relationship ids of the store, and a snapshot of the trace properties, of the
+ * names dictionary and of the step chains at that point. A build can be
+ * resumed from it by parsing the trace again and skipping the records it
+ * covers: only the store records above the high ids can have been written
+ * after the checkpoint. No position in the trace file is recorded, the trace
+ * reader can only parse it from the beginning.
+ *
+ * The checkpoint file is written last and atomically renamed: the snapshot
+ * files are valid only if it exists.
+ *
+ */
+public class NeoTraceCheckpoint {
+
+	private static final String PROPERTIES_SUFFIX = ".properties";
+	private static final String DICTIONARY_SUFFIX = ".dictionary";
+	private static final String CHAINS_SUFFIX = ".chains";
+
+	private static final String RECORDS = "records";
+	private static final String LAST_STEP = "last-step";
+	private static final String LAST_SOURCE = "last-dependency-source";
+	private static final String LAST_TARGET = "last-dependency-target";
+	private static final String HIGH_NODE = "high-node-id";
+	private static final String HIGH_RELATIONSHIP = "high-relationship-id";
+
+	/**
+	 * Check if a checkpoint exists in the given database directory
+	 *
+	 * @param dbPath
+	 * @return
+	 */
+	public static boolean exists(File dbPath) {
+		return new File(dbPath, CHECKPOINT_FILE).exists();
+	}
+
+	/**
+	 * Load the checkpoint of the given database directory
+	 *
+	 * @param dbPath
+	 * @return the checkpoint or <code>null</code> if there is none
+	 * @throws TurnusException
+	 */
+	public static NeoTraceCheckpoint load(File dbPath) throws TurnusException {
+		File file = new File(dbPath, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+
+		Properties values = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			values.load(in);
+		} catch (Exception e) {
+			throw new TurnusException("The trace checkpoint cannot be loaded from " + file, e);
+		}
+
+		TraceProperties properties = TraceProperties.load(new File(dbPath, CHECKPOINT_FILE + PROPERTIES_SUFFIX));
+		NeoDictionary dictionary = null;
+		File dictionaryFile = new File(dbPath, CHECKPOINT_FILE + DICTIONARY_SUFFIX);
+		if (dictionaryFile.exists()) {
+			dictionary = NeoDictionary.load(dictionaryFile);
+		}
+
+		NeoStepChains chains = null;
+		File chainsFile = new File(dbPath, CHECKPOINT_FILE + CHAINS_SUFFIX);
+		if (chainsFile.exists()) {
+			chains = NeoStepChains.load(chainsFile);
+		}
+
+		if (values.getProperty(HIGH_NODE) == null || values.getProperty(HIGH_RELATIONSHIP) == null) {
+			// the records written after it cannot be told apart
+			throw new TurnusException("The trace checkpoint " + file + " does not record the store high ids");
+		}
+
+		NeoTraceCheckpoint checkpoint = new NeoTraceCheckpoint(properties, dictionary, chains);
+		checkpoint.records = Long.parseLong(values.getProperty(RECORDS));
+		checkpoint.lastStep = Long.parseLong(values.getProperty(LAST_STEP));
+		checkpoint.lastSource = Long.parseLong(values.getProperty(LAST_SOURCE));
+		checkpoint.lastTarget = Long.parseLong(values.getProperty(LAST_TARGET));
+		checkpoint.highNodeId = Long.parseLong(values.getProperty(HIGH_NODE));
+		checkpoint.highRelationshipId = Long.parseLong(values.getProperty(HIGH_RELATIONSHIP));
+		return checkpoint;
+	}
+
+	/**
+	 * Delete the checkpoint of the given database directory
+	 *
+	 * @param dbPath
+	 */
+	public static void delete(File dbPath) {
+		// the checkpoint file first: the snapshot files are useless without it
+		new File(dbPath, CHECKPOINT_FILE).delete();
+		new File(dbPath, CHECKPOINT_FILE + PROPERTIES_SUFFIX).delete();
+		new File(dbPath, CHECKPOINT_FILE + DICTIONARY_SUFFIX).delete();
+		new File(dbPath, CHECKPOINT_FILE + CHAINS_SUFFIX).delete();
+	}
+
+	private final TraceProperties properties;
+	private final NeoDictionary dictionary;
+	private final NeoStepChains chains;
+	private long records;
+	private long lastStep = -1;
+	private long lastSource = -1;
+	private long lastTarget = -1;
+	private long highNodeId = -1;
+	private long highRelationshipId = -1;
+
+	/**
+	 * Create a new checkpoint
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @param dictionary
+	 *            the names dictionary, it can be <code>null</code>
+	 * @param chains
+	 *            the step chains, it can be <code>null</code>
+	 */
+	public NeoTraceCheckpoint(TraceProperties properties, NeoDictionary dictionary, NeoStepChains chains) {
+		this.properties = properties;
+		this.dictionary = dictionary;
+		this.chains = chains;
+	}
+
+	public TraceProperties getProperties() {
+		return properties;
+	}
+
+	public NeoDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public NeoStepChains getChains() {
+		return chains;
+	}
+
+	/**
+	 * Return the number of parsed records written before this checkpoint
+	 *
+	 * @return
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	public long getLastStep() {
+		return lastStep;
+	}
+
+	public long getLastDependencySource() {
+		return lastSource;
+	}
+
+	public long getLastDependencyTarget() {
+		return lastTarget;
+	}
+
+	/**
+	 * Return the highest node id written in the store before this checkpoint
+	 * 
+	 * @return the id or -1 if there is no node
+	 */
+	public long getHighNodeId() {
+		return highNodeId;
+	}
+
+	/**
+	 * Return the highest relationship id written in the store before this
+	 * checkpoint
+	 * 
+	 * @return the id or -1 if there is no relationship
+	 */
+	public long getHighRelationshipId() {
+		return highRelationshipId;
+	}
+
+	/**
+	 * Update the position of this checkpoint
+	 *
+	 * @param records
+	 *            the number of parsed records written
+	 * @param lastStep
+	 *            the id of the last written step
+	 * @param lastSource
+	 *            the source id of the last written dependency
+	 * @param lastTarget
+	 *            the target id of the last written dependency
+	 * @param highNodeId
+	 *            the highest node id of the store
+	 * @param highRelationshipId
+	 *            the highest relationship id of the store
+	 */
+	public void update(long records, long lastStep, long lastSource, long lastTarget, long highNodeId,
+			long highRelationshipId) {
+		this.records = records;
+		this.lastStep = lastStep;
+		this.lastSource = lastSource;
+		this.lastTarget = lastTarget;
+		this.highNodeId = highNodeId;
+		this.highRelationshipId = highRelationshipId;
+	}
+
+	/**
+	 * Store this checkpoint in the given database directory. The store must
+	 * have been flushed before.
+	 *
+	 * @param dbPath
+	 * @throws TurnusException
+	 */
+	public void store(File dbPath) throws TurnusException {
+		File file = new File(dbPath, CHECKPOINT_FILE);
+		File tmpFile = new File(dbPath, CHECKPOINT_FILE + ".tmp");
+		try {
+			// an older checkpoint is no more consistent with the snapshot files
+			file.delete();
+			properties.store(new File(dbPath, CHECKPOINT_FILE + PROPERTIES_SUFFIX));
+			if (dictionary != null) {
+				dictionary.store(new File(dbPath, CHECKPOINT_FILE + DICTIONARY_SUFFIX));
+			}
+			if (chains != null) {
+				chains.store(new File(dbPath, CHECKPOINT_FILE + CHAINS_SUFFIX));
+			}
+
+			Properties values = new Properties();
+			values.setProperty(RECORDS, Long.toString(records));
+			values.setProperty(LAST_STEP, Long.toString(lastStep));
+			values.setProperty(LAST_SOURCE, Long.toString(lastSource));
+			values.setProperty(LAST_TARGET, Long.toString(lastTarget));
+			values.setProperty(HIGH_NODE, Long.toString(highNodeId));
+			values.setProperty(HIGH_RELATIONSHIP, Long.toString(highRelationshipId));
+			try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+				values.store(out, "TURNUS trace database checkpoint");
+				out.getFD().sync();
+			}
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (TurnusException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new TurnusException("The trace checkpoint cannot be stored in " + dbPath, e);
+		}
+	}
+
+	/**
+	 * Log this checkpoint
+	 */
+	public void log() {
+		Logger.info("Trace database checkpoint: %d records, last step %d, last dependency %d->%d", records,
+				lastStep, lastSource, lastTarget);
+		Logger.debug("Checkpoint store high ids: node %d, relationship %d", highNodeId, highRelationshipId);
+	}
+
+}
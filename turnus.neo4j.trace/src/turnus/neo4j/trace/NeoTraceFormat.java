@@ -0,0 +1,430 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.neo4j.trace.NeoConstants.TP_COMPACT_DEPENDENCIES;
+import static turnus.neo4j.trace.NeoConstants.TP_FORMAT_VERSION;
+import static turnus.neo4j.trace.NeoConstants.TP_ID_ORDERED;
+import static turnus.neo4j.trace.NeoConstants.TP_LEVELS;
+import static turnus.neo4j.trace.NeoConstants.TP_LEVEL_HISTOGRAM;
+import static turnus.neo4j.trace.NeoConstants.TP_LEVEL_MAX_WIDTH;
+import static turnus.neo4j.trace.NeoConstants.TP_LEVEL_REVISION;
+import static turnus.neo4j.trace.NeoConstants.TP_REVISION;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+import turnus.model.trace.util.TraceProperties;
+
+/**
+ * This class defines how the structural step and dependency properties are
+ * stored in the trace database. Each database records its format version in
+ * the trace properties so that older databases can still be decoded.
+ *
+ */
+public class NeoTraceFormat {
+
+	/**
+	 * Token and variable maps are serialized as strings
+	 */
+	public static final int SERIALIZED = 1;
+
+	/**
+	 * Token maps are stored as parallel port name and count arrays, variable
+	 * lists as name arrays
+	 */
+	public static final int NATIVE = 2;
+
+	/**
+	 * As {@link #NATIVE}, but actor, action, port, guard and variable names are
+	 * stored as {@link NeoDictionary} codes
+	 */
+	public static final int DICTIONARY = 3;
+
+	/**
+	 * The format used for new trace databases
+	 */
+	public static final int CURRENT = DICTIONARY;
+
+	/**
+	 * Return the format version of a trace database
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @return
+	 */
+	public static int getVersion(TraceProperties properties) {
+		Object value = properties.getAttribute(TP_FORMAT_VERSION, null);
+		return value != null ? Integer.parseInt(value.toString()) : SERIALIZED;
+	}
+
+	/**
+	 * Set the format version of a trace database
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @param version
+	 *            the version
+	 */
+	public static void setVersion(TraceProperties properties, int version) {
+		properties.setAttribute(TP_FORMAT_VERSION, version);
+	}
+
+	/**
+	 * Check if the dependencies of a trace database are stored without the
+	 * endpoint properties
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @return
+	 */
+	public static boolean isCompact(TraceProperties properties) {
+		Object value = properties.getAttribute(TP_COMPACT_DEPENDENCIES, null);
+		return value != null && Boolean.parseBoolean(value.toString());
+	}
+
+	/**
+	 * Set if the dependencies of a trace database are stored without the
+	 * endpoint properties
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @param compact
+	 */
+	public static void setCompact(TraceProperties properties, boolean compact) {
+		properties.setAttribute(TP_COMPACT_DEPENDENCIES, compact);
+	}
+
+	/**
+	 * Check if the topological order of a trace database is the step id order,
+	 * i.e. if every dependency goes from a lower to a higher step id and the
+	 * {@link NeoConstants.TopoType#TOPOLOGICAL} chain links each step to the
+	 * next id
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @return
+	 */
+	public static boolean isIdOrdered(TraceProperties properties) {
+		Object value = properties.getAttribute(TP_ID_ORDERED, null);
+		return value != null && Boolean.parseBoolean(value.toString());
+	}
+
+	/**
+	 * Set if the topological order of a trace database is the step id order
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @param idOrdered
+	 */
+	public static void setIdOrdered(TraceProperties properties, boolean idOrdered) {
+		properties.setAttribute(TP_ID_ORDERED, idOrdered);
+	}
+
+	/**
+	 * Return the structural revision of a trace database, i.e. how many times
+	 * its dependencies have been modified after the build
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @return
+	 */
+	public static long getRevision(TraceProperties properties) {
+		Object value = properties.getAttribute(TP_REVISION, null);
+		return value != null ? Long.parseLong(value.toString()) : 0;
+	}
+
+	/**
+	 * Increment the structural revision of a trace database
+	 *
+	 * @param properties
+	 *            the trace properties
+	 */
+	public static void nextRevision(TraceProperties properties) {
+		properties.setAttribute(TP_REVISION, getRevision(properties) + 1);
+	}
+
+	/**
+	 * Store the level histogram of a trace database: the number of levels,
+	 * the width of the largest one and, at index <code>k</code>, the number of
+	 * levels with a width in <code>[2^k, 2^(k+1))</code>. The histogram refers
+	 * to the current structural revision.
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @param levels
+	 * @param maxWidth
+	 * @param histogram
+	 */
+	public static void setLevelHistogram(TraceProperties properties, int levels, long maxWidth, long[] histogram) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < histogram.length; i++) {
+			b.append(i > 0 ? "," : "").append(histogram[i]);
+		}
+		properties.setAttribute(TP_LEVELS, levels);
+		properties.setAttribute(TP_LEVEL_MAX_WIDTH, maxWidth);
+		properties.setAttribute(TP_LEVEL_HISTOGRAM, b.toString());
+		properties.setAttribute(TP_LEVEL_REVISION, getRevision(properties));
+	}
+
+	/**
+	 * Return the level histogram of a trace database
+	 *
+	 * @param properties
+	 *            the trace properties
+	 * @return the histogram or <code>null</code> if it has not been computed
+	 *         for the current structural revision
+	 * @see #setLevelHistogram(TraceProperties, int, long, long[])
+	 */
+	public static long[] getLevelHistogram(TraceProperties properties) {
+		Object value = properties.getAttribute(TP_LEVEL_HISTOGRAM, null);
+		Object revision = properties.getAttribute(TP_LEVEL_REVISION, null);
+		if (value == null || revision == null || Long.parseLong(revision.toString()) != getRevision(properties)) {
+			return null;
+		}
+		String[] counts = value.toString().split(",");
+		long[] histogram = new long[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			histogram[i] = Long.parseLong(counts[i]);
+		}
+		return histogram;
+	}
+
+	private final int version;
+	private final NeoDictionary dictionary;
+	private final boolean compact;
+
+	/**
+	 * Create a new format
+	 *
+	 * @param version
+	 *            the format version
+	 * @param dictionary
+	 *            the names dictionary, required from the
+	 *            {@link #DICTIONARY} version
+	 * @param compact
+	 *            if the dependency endpoint ids, actors and actions are not
+	 *            stored on the relationships but read from the adjacent nodes
+	 */
+	public NeoTraceFormat(int version, NeoDictionary dictionary, boolean compact) {
+		this.version = version;
+		this.dictionary = version >= DICTIONARY ? dictionary : null;
+		this.compact = compact;
+	}
+
+	/**
+	 * Return the format version
+	 *
+	 * @return
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Check if dependencies are stored without the endpoint properties
+	 *
+	 * @return
+	 */
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Return the names dictionary
+	 *
+	 * @return the dictionary or <code>null</code> if names are stored as
+	 *         strings
+	 */
+	public NeoDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Encode a name
+	 *
+	 * @param name
+	 * @return the value to be stored
+	 */
+	public Object encodeName(String name) {
+		if (dictionary == null || name == null) {
+			return name;
+		}
+		return dictionary.encode(name);
+	}
+
+	/**
+	 * Return the stored value of a name without adding it to the dictionary.
+	 * Stored values can be compared with the ones returned by this method.
+	 *
+	 * @param name
+	 * @return the stored value or <code>null</code> if the name is not in the
+	 *         dictionary
+	 */
+	public Object lookupName(String name) {
+		if (dictionary == null) {
+			return name;
+		}
+		return dictionary.lookup(name);
+	}
+
+	/**
+	 * Decode a stored name
+	 *
+	 * @param value
+	 *            the stored value
+	 * @return
+	 */
+	public String decodeName(Object value) {
+		if (value instanceof Integer) {
+			return dictionary.decode((Integer) value);
+		}
+		return (String) value;
+	}
+
+	/**
+	 * Store a tokens map as a port names array and a token counts array
+	 *
+	 * @param tokens
+	 *            the tokens map
+	 * @param portsKey
+	 *            the property name of the ports array
+	 * @param countsKey
+	 *            the property name of the counts array
+	 * @param properties
+	 *            the properties where the arrays are stored
+	 */
+	public void encodeTokens(Map<String, Integer> tokens, String portsKey, String countsKey,
+			Map<String, Object> properties) {
+		int[] counts = new int[tokens.size()];
+		if (dictionary != null) {
+			int[] ports = new int[tokens.size()];
+			int i = 0;
+			for (Entry<String, Integer> e : tokens.entrySet()) {
+				ports[i] = dictionary.encode(e.getKey());
+				counts[i] = e.getValue();
+				i++;
+			}
+			properties.put(portsKey, ports);
+		} else {
+			String[] ports = new String[tokens.size()];
+			int i = 0;
+			for (Entry<String, Integer> e : tokens.entrySet()) {
+				ports[i] = e.getKey();
+				counts[i] = e.getValue();
+				i++;
+			}
+			properties.put(portsKey, ports);
+		}
+		properties.put(countsKey, counts);
+	}
+
+	/**
+	 * Decode a tokens map stored as port names and token counts arrays
+	 *
+	 * @param container
+	 *            the node
+	 * @param portsKey
+	 *            the property name of the ports array
+	 * @param countsKey
+	 *            the property name of the counts array
+	 * @return
+	 */
+	public Map<String, Integer> decodeTokens(PropertyContainer container, String portsKey, String countsKey) {
+		Object ports = container.getProperty(portsKey);
+		int[] counts = (int[]) container.getProperty(countsKey);
+		Map<String, Integer> tokens = new HashMap<>(counts.length * 2);
+		if (ports instanceof int[]) {
+			int[] codes = (int[]) ports;
+			for (int i = 0; i < codes.length; i++) {
+				tokens.put(dictionary.decode(codes[i]), counts[i]);
+			}
+		} else {
+			String[] names = (String[]) ports;
+			for (int i = 0; i < names.length; i++) {
+				tokens.put(names[i], counts[i]);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Store a variables list as a names array
+	 *
+	 * @param variables
+	 *            the variables list
+	 * @param key
+	 *            the property name of the names array
+	 * @param properties
+	 *            the properties where the array is stored
+	 */
+	public void encodeVariables(List<String> variables, String key, Map<String, Object> properties) {
+		if (dictionary != null) {
+			int[] codes = new int[variables.size()];
+			for (int i = 0; i < codes.length; i++) {
+				codes[i] = dictionary.encode(variables.get(i));
+			}
+			properties.put(key, codes);
+		} else {
+			properties.put(key, variables.toArray(new String[variables.size()]));
+		}
+	}
+
+	/**
+	 * Decode a variables list stored as a names array
+	 *
+	 * @param container
+	 *            the node
+	 * @param key
+	 *            the property name of the names array
+	 * @return
+	 */
+	public List<String> decodeVariables(PropertyContainer container, String key) {
+		Object value = container.getProperty(key);
+		if (value instanceof int[]) {
+			int[] codes = (int[]) value;
+			List<String> variables = new ArrayList<>(codes.length);
+			for (int code : codes) {
+				variables.add(dictionary.decode(code));
+			}
+			return variables;
+		}
+		return new ArrayList<>(Arrays.asList((String[]) value));
+	}
+
+}
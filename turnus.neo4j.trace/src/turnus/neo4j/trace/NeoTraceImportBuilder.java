@@ -0,0 +1,454 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import static turnus.common.TurnusConstants.DB_PATH_NAME;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_IMPORT_PROCESSORS;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_IMPORT_PROCESSORS;
+import static turnus.neo4j.trace.NeoConstants.DP_DIRECTION;
+import static turnus.neo4j.trace.NeoConstants.DP_GUARD;
+import static turnus.neo4j.trace.NeoConstants.DP_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTION;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_ID;
+import static turnus.neo4j.trace.NeoConstants.DP_SOURCE_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTION;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_ID;
+import static turnus.neo4j.trace.NeoConstants.DP_TARGET_PORT;
+import static turnus.neo4j.trace.NeoConstants.DP_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.DP_VARIABLE;
+import static turnus.neo4j.trace.NeoConstants.IMPORT_PATH_SUFFIX;
+import static turnus.neo4j.trace.NeoConstants.LB_STEP;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTION;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTOR;
+import static turnus.neo4j.trace.NeoConstants.SP_ACTOR_CLASS;
+import static turnus.neo4j.trace.NeoConstants.SP_ID;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_TOKENS_COUNTS;
+import static turnus.neo4j.trace.NeoConstants.SP_READ_VARIABLES;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_TOKENS_COUNTS;
+import static turnus.neo4j.trace.NeoConstants.SP_WRITE_VARIABLES;
+import static turnus.neo4j.trace.NeoConstants.RelType.getRelType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.tooling.ImportTool;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.batchinsert.BatchRelationship;
+
+import turnus.common.TurnusRuntimeException;
+import turnus.common.configuration.Configuration;
+import turnus.common.io.Logger;
+import turnus.common.util.FileUtils;
+import turnus.common.util.Timer;
+import turnus.model.trace.Dependency.Kind;
+
+/**
+ * A trace builder that streams the steps and dependencies into node and
+ * relationship CSV files, which are then loaded by the Neo4j parallel importer.
+ * The structural properties have a fixed set of columns. The free-form step
+ * and dependency attributes are spilled to a side file and applied, together
+ * with the schema indexes, by a short batch inserter pass after the import.
+ *
+ */
+public class NeoTraceImportBuilder extends AbstractNeoTraceBuilder {
+
+	private static final String NODES_FILE = "nodes.csv";
+	private static final String RELATIONSHIPS_FILE = "relationships.csv";
+	private static final String ATTRIBUTES_FILE = "attributes.bin";
+
+	private static final char SEPARATOR = ',';
+	private static final char ARRAY_DELIMITER = ';';
+
+	/** the number of spilled attribute maps after which the stream is reset */
+	private static final int ATTRIBUTES_RESET = 10000;
+
+	private static final String[] NODE_COLUMNS = { SP_ID, SP_ACTOR, SP_ACTION, SP_ACTOR_CLASS, SP_READ_TOKENS,
+			SP_READ_TOKENS_COUNTS, SP_WRITE_TOKENS, SP_WRITE_TOKENS_COUNTS, SP_READ_VARIABLES, SP_WRITE_VARIABLES };
+
+	private static final String[] RELATIONSHIP_COLUMNS = { DP_SOURCE_ID, DP_SOURCE_ACTOR, DP_SOURCE_ACTION,
+			DP_TARGET_ID, DP_TARGET_ACTOR, DP_TARGET_ACTION, DP_GUARD, DP_PORT, DP_VARIABLE, DP_SOURCE_PORT,
+			DP_TARGET_PORT, DP_TOKENS, DP_DIRECTION };
+
+	private final File importPath;
+	private int processors = DEFAULT_IMPORT_PROCESSORS;
+
+	private Writer nodes;
+	private Writer relationships;
+	private ObjectOutputStream attributes;
+	private long relationshipsCount;
+	private long attributesCount;
+
+	public NeoTraceImportBuilder(File traceFile) {
+		super(traceFile);
+		importPath = new File(traceFile.getParentFile(), DB_PATH_NAME + IMPORT_PATH_SUFFIX);
+	}
+
+	@Override
+	public void setConfiguration(Configuration configuration) {
+		super.setConfiguration(configuration);
+		processors = configuration.getValue(CONFIG_IMPORT_PROCESSORS, DEFAULT_IMPORT_PROCESSORS);
+	}
+
+	@Override
+	public boolean resume() {
+		// the importer can only create a new store
+		return false;
+	}
+
+	@Override
+	protected void open() {
+		Logger.info("Configuring the trace import files in \"%s\"", importPath);
+		try {
+			if (importPath.exists()) {
+				FileUtils.deleteDirectory(importPath);
+			}
+			FileUtils.createDirectory(importPath);
+
+			nodes = openCsv(NODES_FILE);
+			writeHeader(nodes, ":ID", NODE_COLUMNS, ":LABEL");
+
+			relationships = openCsv(RELATIONSHIPS_FILE);
+			writeHeader(relationships, ":START_ID" + SEPARATOR + ":END_ID", RELATIONSHIP_COLUMNS, ":TYPE");
+
+			attributes = new ObjectOutputStream(
+					new BufferedOutputStream(new FileOutputStream(new File(importPath, ATTRIBUTES_FILE))));
+		} catch (Exception e) {
+			throw new TurnusRuntimeException("The trace import files cannot be created in " + importPath, e);
+		}
+	}
+
+	@Override
+	protected void writeStep(long id, Map<String, Object> properties) {
+		try {
+			nodes.write(Long.toString(id));
+			Map<String, Object> remaining = writeColumns(nodes, NODE_COLUMNS, properties);
+			nodes.write(SEPARATOR);
+			nodes.write(LB_STEP);
+			nodes.write('\n');
+			spillStep(id, remaining);
+		} catch (IOException e) {
+			throw new TurnusRuntimeException("The step " + id + " cannot be written in the import file", e);
+		}
+	}
+
+	@Override
+	protected void writeDependency(long sourceId, long targetId, Kind kind, Map<String, Object> properties) {
+		try {
+			relationships.write(Long.toString(sourceId));
+			relationships.write(SEPARATOR);
+			relationships.write(Long.toString(targetId));
+			Map<String, Object> remaining = writeColumns(relationships, RELATIONSHIP_COLUMNS, properties);
+			relationships.write(SEPARATOR);
+			relationships.write(getRelType(kind).name());
+			relationships.write('\n');
+			// the importer is expected to assign the relationship ids in the
+			// input order: it is checked when the attributes are applied
+			spillDependency(relationshipsCount++, sourceId, targetId, getRelType(kind).name(), remaining);
+		} catch (IOException e) {
+			throw new TurnusRuntimeException(
+					"The dependency " + sourceId + "->" + targetId + " cannot be written in the import file", e);
+		}
+	}
+
+	@Override
+	protected void writeLink(long sourceId, long targetId, RelationshipType type) {
+		try {
+			relationships.write(Long.toString(sourceId));
+			relationships.write(SEPARATOR);
+			relationships.write(Long.toString(targetId));
+			for (int i = 0; i < RELATIONSHIP_COLUMNS.length; i++) {
+				relationships.write(SEPARATOR);
+			}
+			relationships.write(SEPARATOR);
+			relationships.write(type.name());
+			relationships.write('\n');
+			relationshipsCount++;
+		} catch (IOException e) {
+			throw new TurnusRuntimeException(
+					"The link " + sourceId + "->" + targetId + " cannot be written in the import file", e);
+		}
+	}
+
+	@Override
+	protected void close() {
+		try {
+			nodes.close();
+			relationships.close();
+			attributes.close();
+		} catch (IOException e) {
+			throw new TurnusRuntimeException("The trace import files cannot be closed", e);
+		}
+
+		Timer timer = new Timer();
+		Logger.info("Importing the trace database with %d processors", processors);
+		try {
+			ImportTool.main(new String[] { //
+					"--into", dbPath.getAbsolutePath(), //
+					"--nodes", new File(importPath, NODES_FILE).getAbsolutePath(), //
+					"--relationships", new File(importPath, RELATIONSHIPS_FILE).getAbsolutePath(), //
+					"--id-type", "ACTUAL", //
+					"--array-delimiter", Character.toString(ARRAY_DELIMITER), //
+					"--processors", Integer.toString(processors) });
+		} catch (Exception e) {
+			throw new TurnusRuntimeException("The trace database cannot be imported in " + dbPath, e);
+		}
+		Logger.debug("Trace database imported in %ds", timer.getElapsedS());
+
+		applyAttributes();
+
+		try {
+			FileUtils.deleteDirectory(importPath);
+		} catch (Exception e) {
+			Logger.warning("The import directory \"%s\" has not been completely cleaned", importPath);
+			Logger.debug(e.getMessage());
+		}
+	}
+
+	/**
+	 * Apply the spilled attributes and create the schema indexes on the
+	 * imported store
+	 */
+	private void applyAttributes() {
+		Logger.debug("Applying %d attribute maps to the imported trace database", attributesCount);
+		BatchInserter inserter = BatchInserters.inserter(dbPath.getAbsolutePath(), getStoreConfiguration());
+		try (ObjectInputStream in = new ObjectInputStream(
+				new BufferedInputStream(new FileInputStream(new File(importPath, ATTRIBUTES_FILE))))) {
+			for (long i = 0; i < attributesCount; i++) {
+				boolean node = in.readBoolean();
+				long id = in.readLong();
+				if (!node) {
+					long sourceId = in.readLong();
+					long targetId = in.readLong();
+					String type = in.readUTF();
+					id = getRelationshipId(inserter, id, sourceId, targetId, type);
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> properties = (Map<String, Object>) in.readObject();
+				for (Entry<String, Object> e : properties.entrySet()) {
+					if (node) {
+						inserter.setNodeProperty(id, e.getKey(), e.getValue());
+					} else {
+						inserter.setRelationshipProperty(id, e.getKey(), e.getValue());
+					}
+				}
+			}
+			createIndexes(inserter);
+		} catch (Exception e) {
+			throw new TurnusRuntimeException("The trace attributes cannot be applied to " + dbPath, e);
+		} finally {
+			inserter.shutdown();
+		}
+	}
+
+	/**
+	 * Return the id of the imported relationship of a spilled dependency. The
+	 * relationship with the expected id must have the same end steps and type,
+	 * otherwise it is looked up among the relationships of the source step.
+	 *
+	 * @param inserter
+	 * @param id
+	 *            the expected relationship id
+	 * @param sourceId
+	 * @param targetId
+	 * @param type
+	 * @return
+	 */
+	private static long getRelationshipId(BatchInserter inserter, long id, long sourceId, long targetId,
+			String type) {
+		if (isRelationship(inserter.getRelationshipById(id), sourceId, targetId, type)) {
+			return id;
+		}
+		long found = -1;
+		for (BatchRelationship r : inserter.getRelationships(sourceId)) {
+			if (isRelationship(r, sourceId, targetId, type)) {
+				if (found >= 0) {
+					throw new TurnusRuntimeException("The imported dependency " + sourceId + "->" + targetId + " ("
+							+ type + ") is not unique: its attributes cannot be applied");
+				}
+				found = r.getId();
+			}
+		}
+		if (found < 0) {
+			throw new TurnusRuntimeException(
+					"The imported dependency " + sourceId + "->" + targetId + " (" + type + ") cannot be found");
+		}
+		return found;
+	}
+
+	private static boolean isRelationship(BatchRelationship r, long sourceId, long targetId, String type) {
+		return r.getStartNode() == sourceId && r.getEndNode() == targetId && r.getType().name().equals(type);
+	}
+
+	private Writer openCsv(String name) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(importPath, name)),
+				StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * Write a CSV header. The column types are the ones produced by the trace
+	 * format: names are dictionary codes or strings.
+	 */
+	private void writeHeader(Writer writer, String first, String[] columns, String last) throws IOException {
+		writer.write(first);
+		for (String column : columns) {
+			writer.write(SEPARATOR);
+			writer.write(column);
+			writer.write(':');
+			writer.write(getColumnType(column));
+		}
+		writer.write(SEPARATOR);
+		writer.write(last);
+		writer.write('\n');
+	}
+
+	private String getColumnType(String column) {
+		if (column.equals(SP_ID) || column.equals(DP_SOURCE_ID) || column.equals(DP_TARGET_ID)) {
+			return "long";
+		} else if (column.equals(DP_TOKENS)) {
+			return "int";
+		} else if (column.equals(DP_DIRECTION)) {
+			return "string";
+		} else if (column.equals(SP_READ_TOKENS_COUNTS) || column.equals(SP_WRITE_TOKENS_COUNTS)) {
+			return "int[]";
+		}
+
+		String name = format.getDictionary() != null ? "int" : "string";
+		if (column.equals(SP_READ_TOKENS) || column.equals(SP_WRITE_TOKENS) || column.equals(SP_READ_VARIABLES)
+				|| column.equals(SP_WRITE_VARIABLES)) {
+			return name + "[]";
+		}
+		return name;
+	}
+
+	/**
+	 * Write the columns values of a record. Missing values are left empty, so
+	 * that the importer does not create the property.
+	 *
+	 * @return the properties that are not stored in any column
+	 */
+	private static Map<String, Object> writeColumns(Writer writer, String[] columns, Map<String, Object> properties)
+			throws IOException {
+		Map<String, Object> remaining = new HashMap<>(properties);
+		for (String column : columns) {
+			writer.write(SEPARATOR);
+			Object value = remaining.remove(column);
+			if (value != null) {
+				writeValue(writer, value);
+			}
+		}
+		return remaining;
+	}
+
+	private static void writeValue(Writer writer, Object value) throws IOException {
+		if (value instanceof String) {
+			writeString(writer, (String) value);
+		} else if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			boolean strings = value instanceof String[];
+			if (strings) {
+				writer.write('"');
+			}
+			for (int i = 0; i < length; i++) {
+				if (i > 0) {
+					writer.write(ARRAY_DELIMITER);
+				}
+				Object element = Array.get(value, i);
+				writer.write(strings ? ((String) element).replace("\"", "\"\"") : element.toString());
+			}
+			if (strings) {
+				writer.write('"');
+			}
+		} else {
+			writer.write(value.toString());
+		}
+	}
+
+	private static void writeString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		writer.write(value.replace("\"", "\"\""));
+		writer.write('"');
+	}
+
+	private void spillStep(long id, Map<String, Object> properties) throws IOException {
+		if (properties.isEmpty()) {
+			return;
+		}
+		attributes.writeBoolean(true);
+		attributes.writeLong(id);
+		spill(properties);
+	}
+
+	/**
+	 * Spill the attributes of a dependency, with its end steps and type so
+	 * that the imported relationship can be checked
+	 */
+	private void spillDependency(long id, long sourceId, long targetId, String type, Map<String, Object> properties)
+			throws IOException {
+		if (properties.isEmpty()) {
+			return;
+		}
+		attributes.writeBoolean(false);
+		attributes.writeLong(id);
+		attributes.writeLong(sourceId);
+		attributes.writeLong(targetId);
+		attributes.writeUTF(type);
+		spill(properties);
+	}
+
+	private void spill(Map<String, Object> properties) throws IOException {
+		attributes.writeObject(properties);
+		if (++attributesCount % ATTRIBUTES_RESET == 0) {
+			attributes.reset();
+		}
+	}
+
+}
@@ -34,6 +34,8 @@ package turnus.neo4j.trace;
 import static turnus.common.TurnusConstants.DB_PATH_NAME;
 import static turnus.common.TurnusConstants.DEFAULT_REMOVE_TEMP_TRACE_FILES;
 import static turnus.common.TurnusOptions.CONFIG_REMOVE_TEMP_TRACE_FILES;
+import static turnus.neo4j.trace.NeoConstants.CONFIG_READ_ONLY;
+import static turnus.neo4j.trace.NeoConstants.DEFAULT_READ_ONLY;
 
 import java.io.File;
 
@@ -56,10 +58,18 @@ public class NeoTraceLoader implements TraceLoader {
 	public Trace load(File traceFile, Configuration configuration) throws TurnusException {
 
 		File dbPath = new File(traceFile.getParentFile(), DB_PATH_NAME);
-		if (dbPath.exists()
-				&& !configuration.getValue(CONFIG_REMOVE_TEMP_TRACE_FILES, DEFAULT_REMOVE_TEMP_TRACE_FILES)) {
+		if (configuration.getValue(CONFIG_READ_ONLY, DEFAULT_READ_ONLY)) {
+			// the trace directory can be shared: it is never rebuilt
+			if (!dbPath.exists() || NeoTraceCheckpoint.exists(dbPath)) {
+				throw new TurnusException("There is no complete trace database to open read-only in " + dbPath);
+			}
+			return new NeoTrace(traceFile, configuration);
+		}
+
+		boolean reuse = !configuration.getValue(CONFIG_REMOVE_TEMP_TRACE_FILES, DEFAULT_REMOVE_TEMP_TRACE_FILES);
+		if (dbPath.exists() && reuse && !NeoTraceCheckpoint.exists(dbPath)) {
 			try {
-				Trace trace = new NeoTrace(traceFile);
+				Trace trace = new NeoTrace(traceFile, configuration);
 				return trace;
 			} catch (Exception e) {
 				Logger.info("The execution trace database should be reloaded");
@@ -67,8 +77,13 @@ public class NeoTraceLoader implements TraceLoader {
 			}
 		}
 
-		// clean the directory
-		if (dbPath.exists()) {
+		AbstractNeoTraceBuilder builder = createBuilder(traceFile);
+		builder.setConfiguration(configuration);
+
+		// resume an interrupted build or clean the directory
+		if (dbPath.exists() && reuse && NeoTraceCheckpoint.exists(dbPath) && builder.resume()) {
+			Logger.info("Resuming the execution trace database building from the last checkpoint");
+		} else if (dbPath.exists()) {
 			try {
 				Logger.info("Cleaning the directory %s. All the data will be deleted", dbPath);
 				FileUtils.deleteDirectory(dbPath);
@@ -80,10 +95,18 @@ public class NeoTraceLoader implements TraceLoader {
 			FileUtils.createDirectory(dbPath);
 		}
 
-		NeoTraceBuilder builder = new NeoTraceBuilder(traceFile);
-		builder.setConfiguration(configuration);
 		new XmlTraceReader(builder, traceFile).load();
 		return builder.build();
 	}
 
+	/**
+	 * Create the builder used to store the trace in the database
+	 * 
+	 * @param traceFile
+	 * @return
+	 */
+	protected AbstractNeoTraceBuilder createBuilder(File traceFile) {
+		return new NeoTraceBuilder(traceFile);
+	}
+
 }
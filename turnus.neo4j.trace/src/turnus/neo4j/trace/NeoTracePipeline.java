@@ -0,0 +1,298 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import turnus.common.TurnusRuntimeException;
+import turnus.common.io.Logger;
+
+/**
+ * A three stage ingestion pipeline. Records are produced by the parser thread,
+ * encoded in batches by a pool of encoder threads and finally written by a
+ * single writer thread. Batches are handed to the writer in the same order
+ * they have been submitted, hence the writer sees the records exactly as the
+ * parser produced them.
+ *
+ */
+public class NeoTracePipeline {
+
+	/**
+	 * A record flowing through the pipeline
+	 */
+	public interface Record {
+
+		/**
+		 * Encode the record. This method can be called by any encoder thread.
+		 */
+		void encode();
+
+		/**
+		 * Write the record. This method is always called by the writer thread.
+		 */
+		void write();
+	}
+
+	/**
+	 * The throughput counter of a pipeline stage
+	 */
+	public static class StageCounter {
+		private final String name;
+		private final AtomicLong records = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+
+		private StageCounter(String name) {
+			this.name = name;
+		}
+
+		private void busy(long records, long nanos) {
+			this.records.addAndGet(records);
+			busyNanos.addAndGet(nanos);
+		}
+
+		private void waited(long nanos) {
+			waitNanos.addAndGet(nanos);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getRecords() {
+			return records.get();
+		}
+
+		public double getBusyS() {
+			return busyNanos.get() / 1e9;
+		}
+
+		public double getWaitS() {
+			return waitNanos.get() / 1e9;
+		}
+
+		/**
+		 * The number of records per second of busy time
+		 *
+		 * @return
+		 */
+		public double getThroughput() {
+			long nanos = busyNanos.get();
+			return nanos > 0 ? records.get() * 1e9 / nanos : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d records, %.0f records/s, busy %.1fs, waiting %.1fs", name, getRecords(),
+					getThroughput(), getBusyS(), getWaitS());
+		}
+	}
+
+	/** the end of stream marker */
+	private static final Future<List<Record>> END = CompletableFuture.completedFuture(null);
+
+	private final int batchSize;
+	private final ExecutorService encoders;
+	private final BlockingQueue<Future<List<Record>>> queue;
+	private final Thread writer;
+	private volatile Throwable failure;
+
+	private List<Record> batch;
+	private long parseStart;
+
+	private final StageCounter parseCounter = new StageCounter("parse");
+	private final StageCounter encodeCounter = new StageCounter("encode");
+	private final StageCounter writeCounter = new StageCounter("write");
+
+	/**
+	 * Create and start a new pipeline
+	 *
+	 * @param encoders
+	 *            the number of encoder threads
+	 * @param batchSize
+	 *            the number of records in each batch
+	 * @param queueSize
+	 *            the maximum number of batches waiting to be written
+	 */
+	public NeoTracePipeline(int encoders, int batchSize, int queueSize) {
+		this.batchSize = batchSize;
+		this.encoders = Executors.newFixedThreadPool(encoders, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "neo trace encoder " + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.batch = new ArrayList<>(batchSize);
+
+		writer = new Thread("neo trace writer") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						long t0 = System.nanoTime();
+						Future<List<Record>> next = queue.take();
+						if (next == END) {
+							return;
+						}
+						List<Record> records = next.get();
+						long t1 = System.nanoTime();
+						for (Record record : records) {
+							record.write();
+						}
+						writeCounter.waited(t1 - t0);
+						writeCounter.busy(records.size(), System.nanoTime() - t1);
+					}
+				} catch (Throwable t) {
+					failure = t;
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		Logger.debug("Ingestion pipeline started: %d encoders, batches of %d records, %d batches queue", encoders,
+				batchSize, queueSize);
+		parseStart = System.nanoTime();
+	}
+
+	/**
+	 * Submit a new record. This method should be called only by the parser
+	 * thread.
+	 *
+	 * @param record
+	 */
+	public void submit(Record record) {
+		batch.add(record);
+		if (batch.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * Wait until all the submitted records have been written, then stop all
+	 * the pipeline threads
+	 */
+	public void finish() {
+		flush();
+		parseCounter.busy(0, System.nanoTime() - parseStart);
+		enqueue(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		encoders.shutdown();
+		checkFailure();
+
+		Logger.info("Ingestion pipeline throughput");
+		for (StageCounter counter : getCounters()) {
+			Logger.info(" %s", counter);
+		}
+	}
+
+	/**
+	 * Return the counters of the parse, encode and write stages
+	 *
+	 * @return
+	 */
+	public List<StageCounter> getCounters() {
+		List<StageCounter> counters = new ArrayList<>(3);
+		counters.add(parseCounter);
+		counters.add(encodeCounter);
+		counters.add(writeCounter);
+		return counters;
+	}
+
+	private void flush() {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		final List<Record> records = batch;
+		batch = new ArrayList<>(batchSize);
+
+		long t0 = System.nanoTime();
+		Future<List<Record>> future = encoders.submit(new Callable<List<Record>>() {
+			@Override
+			public List<Record> call() throws Exception {
+				long t0 = System.nanoTime();
+				for (Record record : records) {
+					record.encode();
+				}
+				encodeCounter.busy(records.size(), System.nanoTime() - t0);
+				return records;
+			}
+		});
+		enqueue(future);
+
+		// the time spent waiting for the writer is not parsing time
+		long waited = System.nanoTime() - t0;
+		parseCounter.waited(waited);
+		parseCounter.busy(records.size(), -waited);
+	}
+
+	private void enqueue(Future<List<Record>> future) {
+		try {
+			while (!queue.offer(future, 100, TimeUnit.MILLISECONDS)) {
+				checkFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TurnusRuntimeException("The ingestion pipeline has been interrupted");
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null) {
+			encoders.shutdownNow();
+			throw new TurnusRuntimeException("The ingestion pipeline failed: " + failure.getMessage(), failure);
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import turnus.common.TurnusRuntimeException;
+import turnus.common.io.Logger;
+
+/**
+ * A bounded cache of the decoded step and dependency property values (token
+ * maps, variable lists and attributes). Entries are weighted by their
+ * estimated heap size and evicted in least recently used order. Decoded maps
+ * and lists are returned as unmodifiable views, so they can be shared by all
+ * the callers.
+ *
+ */
+public class NeoValueCache {
+
+	/** the property name used to cache the whole attributes map */
+	public static final String ALL_ATTRIBUTES = "";
+
+	/** estimated heap sizes, in bytes */
+	private static final int ENTRY_SIZE = 96;
+	private static final int ELEMENT_SIZE = 48;
+
+	private static final Object NULL = new Object();
+
+	private static class Key {
+		private final boolean node;
+		private final long id;
+		private final String property;
+
+		private Key(boolean node, long id, String property) {
+			this.node = node;
+			this.id = id;
+			this.property = property;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj instanceof Key) {
+				Key k = (Key) obj;
+				return k.id == id && k.node == node && k.property.equals(property);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (id ^ (id >>> 32)) * 31 + property.hashCode() + (node ? 1 : 0);
+		}
+	}
+
+	private final Cache<Key, Object> cache;
+
+	/**
+	 * Create a new cache
+	 *
+	 * @param maxBytes
+	 *            the maximum estimated heap size of the cached values
+	 */
+	public NeoValueCache(long maxBytes) {
+		cache = CacheBuilder.newBuilder().maximumWeight(maxBytes).weigher(new Weigher<Key, Object>() {
+			@Override
+			public int weigh(Key key, Object value) {
+				int size = ENTRY_SIZE;
+				if (value instanceof Map) {
+					size += ((Map<?, ?>) value).size() * ELEMENT_SIZE;
+				} else if (value instanceof Collection) {
+					size += ((Collection<?>) value).size() * ELEMENT_SIZE;
+				}
+				return size;
+			}
+		}).recordStats().build();
+	}
+
+	/**
+	 * Return the decoded value of a property, loading it if it is not cached.
+	 * Maps and lists are returned as unmodifiable views.
+	 *
+	 * @param node
+	 *            <code>true</code> for a step, <code>false</code> for a
+	 *            dependency
+	 * @param id
+	 *            the node or relationship id
+	 * @param property
+	 *            the property name
+	 * @param loader
+	 *            the loader of the decoded value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(boolean node, long id, String property, final Callable<T> loader) {
+		try {
+			Object value = cache.get(new Key(node, id, property), new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					Object value = loader.call();
+					if (value == null) {
+						return NULL;
+					} else if (value instanceof Map) {
+						return Collections.unmodifiableMap((Map<?, ?>) value);
+					} else if (value instanceof List) {
+						return Collections.unmodifiableList((List<?>) value);
+					}
+					return value;
+				}
+			});
+			return value == NULL ? null : (T) value;
+		} catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new TurnusRuntimeException("The property " + property + " cannot be decoded", cause);
+		}
+	}
+
+	/**
+	 * Invalidate a cached property value, and the cached attributes map of the
+	 * same node or relationship
+	 *
+	 * @param node
+	 * @param id
+	 * @param property
+	 */
+	public void invalidate(boolean node, long id, String property) {
+		cache.invalidate(new Key(node, id, property));
+		cache.invalidate(new Key(node, id, ALL_ATTRIBUTES));
+	}
+
+	/**
+	 * Invalidate all the cached values
+	 */
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Return the hit and miss counters
+	 *
+	 * @return
+	 */
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/**
+	 * Log the hit and miss counters
+	 */
+	public void log() {
+		CacheStats stats = cache.stats();
+		Logger.debug("Decoded values cache: %d hits, %d misses (%.1f%% hit rate), %d evictions", stats.hitCount(),
+				stats.missCount(), stats.hitRate() * 100, stats.evictionCount());
+	}
+
+}
@@ -0,0 +1,248 @@
+/* 
+ * TURNUS - www.turnus.co
+ * 
+ * Copyright (C) 2010-2016 EPFL SCI STI MM
+ *
+ * This file is part of TURNUS.
+ *
+ * TURNUS is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TURNUS is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with TURNUS.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Additional permission under GNU GPL version 3 section 7
+ * 
+ * If you modify this Program, or any covered work, by linking or combining it
+ * with Eclipse (or a modified version of Eclipse or an Eclipse plugin or 
+ * an Eclipse library), containing parts covered by the terms of the 
+ * Eclipse Public License (EPL), the licensors of this Program grant you 
+ * additional permission to convey the resulting work.  Corresponding Source 
+ * for a non-source form of such a combination shall include the source code 
+ * for the parts of Eclipse libraries used as well as that of the  covered work.
+ * 
+ */
+package turnus.neo4j.trace;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Transaction;
+
+import turnus.common.TurnusRuntimeException;
+import turnus.common.io.Logger;
+
+/**
+ * A write-behind buffer of the step and dependency attribute writes. The
+ * writes are coalesced (only the last value of an attribute is kept) and
+ * applied in batches. The batches are applied in the transaction of the
+ * calling thread or, asynchronously, by a committer thread in its own
+ * transactions. At most {@link #MAX_PENDING_BATCHES} batches wait for the
+ * committer, so the memory used by the buffer is bounded.
+ *
+ */
+public class NeoWriteBuffer {
+
+	/** the maximum number of batches queued for the committer */
+	public static final int MAX_PENDING_BATCHES = 2;
+
+	/** the value of a removed attribute */
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * Return the estimated store size of a serialized attribute value
+	 *
+	 * @param value
+	 * @return the size in bytes
+	 */
+	public static long estimateSize(Object value) {
+		if (value instanceof String) {
+			return 40 + 2 * ((String) value).length();
+		}
+		return 16;
+	}
+
+	private final GraphDatabaseService graphDb;
+	private final int batchSize;
+	private final ExecutorService committer;
+	private final Deque<Future<?>> pending = new ArrayDeque<>();
+
+	private Map<Long, Map<String, Object>> nodes = new HashMap<>();
+	private Map<Long, Map<String, Object>> relationships = new HashMap<>();
+	private int operations;
+
+	/**
+	 * Create a new buffer
+	 *
+	 * @param graphDb
+	 * @param batchSize
+	 *            the number of writes of a batch
+	 * @param async
+	 *            if the batches are applied by a committer thread
+	 */
+	public NeoWriteBuffer(GraphDatabaseService graphDb, int batchSize, boolean async) {
+		this.graphDb = graphDb;
+		this.batchSize = batchSize;
+		committer = async ? Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "neo trace committer");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+	}
+
+	/**
+	 * Check if the batches are applied by a committer thread
+	 *
+	 * @return
+	 */
+	public boolean isAsync() {
+		return committer != null;
+	}
+
+	/**
+	 * Check if there are no buffered writes
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return operations == 0;
+	}
+
+	/**
+	 * Buffer an attribute write
+	 *
+	 * @param node
+	 *            <code>true</code> for a step, <code>false</code> for a
+	 *            dependency
+	 * @param id
+	 *            the node or relationship id
+	 * @param name
+	 * @param value
+	 *            the serialized value
+	 * @return <code>true</code> if the batch is full and it should be flushed
+	 */
+	public boolean set(boolean node, long id, String name, Object value) {
+		Map<Long, Map<String, Object>> writes = node ? nodes : relationships;
+		Map<String, Object> attributes = writes.get(id);
+		if (attributes == null) {
+			attributes = new HashMap<>();
+			writes.put(id, attributes);
+		}
+		attributes.put(name, value);
+		return ++operations >= batchSize;
+	}
+
+	/**
+	 * Buffer an attribute removal
+	 *
+	 * @param node
+	 *            <code>true</code> for a step, <code>false</code> for a
+	 *            dependency
+	 * @param id
+	 *            the node or relationship id
+	 * @param name
+	 * @return <code>true</code> if the batch is full and it should be flushed
+	 */
+	public boolean remove(boolean node, long id, String name) {
+		return set(node, id, name, REMOVED);
+	}
+
+	/**
+	 * Apply the buffered writes: in the transaction of the calling thread, or
+	 * by the committer thread. In the latter case this method blocks while
+	 * too many batches are waiting.
+	 */
+	public void flush() {
+		if (operations == 0) {
+			return;
+		}
+		final Map<Long, Map<String, Object>> batchNodes = nodes;
+		final Map<Long, Map<String, Object>> batchRelationships = relationships;
+		nodes = new HashMap<>();
+		relationships = new HashMap<>();
+		operations = 0;
+
+		if (committer == null) {
+			apply(batchNodes, batchRelationships);
+			return;
+		}
+		while (pending.size() >= MAX_PENDING_BATCHES) {
+			waitFor(pending.poll());
+		}
+		pending.add(committer.submit(() -> apply(batchNodes, batchRelationships)));
+	}
+
+	/**
+	 * Wait until the committer thread has applied all the flushed batches
+	 */
+	public void await() {
+		while (!pending.isEmpty()) {
+			waitFor(pending.poll());
+		}
+	}
+
+	/**
+	 * Flush the buffered writes, wait for the committer thread and stop it
+	 */
+	public void close() {
+		flush();
+		await();
+		if (committer != null) {
+			committer.shutdown();
+		}
+	}
+
+	private void apply(Map<Long, Map<String, Object>> batchNodes,
+			Map<Long, Map<String, Object>> batchRelationships) {
+		// on the committer thread this is a new transaction, otherwise it is
+		// nested in the transaction of the calling thread
+		try (Transaction tx = graphDb.beginTx()) {
+			for (Entry<Long, Map<String, Object>> e : batchNodes.entrySet()) {
+				apply(graphDb.getNodeById(e.getKey()), e.getValue());
+			}
+			for (Entry<Long, Map<String, Object>> e : batchRelationships.entrySet()) {
+				apply(graphDb.getRelationshipById(e.getKey()), e.getValue());
+			}
+			tx.success();
+		}
+	}
+
+	private void apply(PropertyContainer container, Map<String, Object> attributes) {
+		for (Entry<String, Object> e : attributes.entrySet()) {
+			if (e.getValue() == REMOVED) {
+				container.removeProperty(e.getKey());
+			} else {
+				container.setProperty(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private void waitFor(Future<?> batch) {
+		try {
+			batch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TurnusRuntimeException("Interrupted while waiting for the attribute writes", e);
+		} catch (ExecutionException e) {
+			Logger.error("The attribute writes cannot be committed: %s", e.getCause().getMessage());
+			throw new TurnusRuntimeException("The attribute writes cannot be committed", e.getCause());
+		}
+	}
+
+}